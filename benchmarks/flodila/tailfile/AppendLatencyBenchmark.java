@@ -0,0 +1,91 @@
+package flodila.tailfile;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency from appending a line to the file until every observer of it got the line
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class AppendLatencyBenchmark {
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final byte[] LINE = "INFO request handled user=4711 took 12ms path=/api/v1/orders status=200\n".getBytes(StandardCharsets.UTF_8);
+
+	@Param({"1", "100", "1000"})
+	public int observers;
+
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong lines = new AtomicLong();
+	private Path path;
+	private FileOutputStream out;
+	private TailFileWatcher tailFileWatcher;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, TimeoutException {
+		path = Files.createTempFile("tail-bench-", ".log");
+		out = new FileOutputStream(path.toFile(), true);
+		tailFileWatcher = new TailFileWatcher();
+		final TailFileObserver observer = (state, newLines, message) -> {
+			updates.incrementAndGet();
+			if (newLines != null) {
+				lines.addAndGet(newLines.size());
+			}
+		};
+		for (int i=0; i<observers; i++) {
+			tailFileWatcher.watch(path.toFile(), StandardCharsets.UTF_8, observer, null, null, Integer.valueOf(0));
+		}
+		await(updates, observers); // the initial RESET of each watch
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		tailFileWatcher.shutdown();
+		out.close();
+		Files.deleteIfExists(path);
+	}
+
+	@Benchmark
+	public long appendToObservers() throws IOException, TimeoutException {
+		final long expected = lines.get() + observers;
+		out.write(LINE);
+		out.flush();
+		return await(lines, expected);
+	}
+
+	private static long await(AtomicLong counter, long expected) throws TimeoutException {
+		final long start = System.nanoTime();
+		long current;
+		while ((current = counter.get()) < expected) {
+			if (System.nanoTime() - start > TIMEOUT_NANOS) {
+				throw new TimeoutException(current+" of "+expected);
+			}
+			Thread.onSpinWait();
+		}
+		return current;
+	}
+}
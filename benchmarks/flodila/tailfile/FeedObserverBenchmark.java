@@ -0,0 +1,73 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import flodila.tailfile.TailFileObserver.FileState;
+import flodila.tailfile.TailFileWatcher.TailFileWatcherThread.TailWatchedFile;
+
+/**
+ * Map, decode and split one window of a file: the read path of every watched file
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FeedObserverBenchmark {
+	private static final int FILE_BYTES = 1024 * 1024;
+
+	@Param({"80", "4096"})
+	public int lineLength;
+	@Param({"ascii", "utf8"})
+	public String content;
+	@Param({"LF", "CRLF"})
+	public String eol;
+
+	private Path path;
+	private long size;
+	private TailWatchedFile twf;
+	private List<TailFileObserver.Line> lastLines;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		path = SyntheticLog.write(content, lineLength, eol, FILE_BYTES);
+		size = Files.size(path);
+		twf = new TailWatchedFile(Long.valueOf(0L), path.toRealPath(), StandardCharsets.UTF_8,
+				(state, newLines, message) -> lastLines = newLines,
+				2 * FILE_BYTES / 1024, Integer.MAX_VALUE, 0L, TailFileWatcher.CatchUpMode.STREAM); // all lines of the window
+		twf.feedObserver(StandardWatchEventKinds.ENTRY_CREATE); // opens the channel
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		twf.close();
+		Files.deleteIfExists(path);
+	}
+
+	@Benchmark
+	public List<TailFileObserver.Line> doFeedObserver() throws IOException {
+		twf.doFeedObserver(FileState.CONTINUED, 0L, size, false);
+		return lastLines;
+	}
+}
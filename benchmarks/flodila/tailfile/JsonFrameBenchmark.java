@@ -0,0 +1,53 @@
+package flodila.tailfile;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import flodila.tailfile.TailFileObserver.FileState;
+import flodila.tailfile.TailFileServlet.TailsockEndpoint;
+
+/**
+ * escJson and frame building of the web socket endpoint for one full line buffer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonFrameBenchmark {
+	@Param({"80", "4096"})
+	public int lineLength;
+	@Param({"ascii", "utf8", "escapes"})
+	public String content;
+
+	private List<TailFileObserver.Line> lines;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		lines = SyntheticLog.lines(content, lineLength, TailFileWatcher.DEFAULT_MAX_LINES);
+	}
+
+	@Benchmark
+	public String jsonFrame() {
+		return TailsockEndpoint.jsonFrame(FileState.CONTINUED, lines, "continued");
+	}
+
+	@Benchmark
+	public String escJson() {
+		return TailsockEndpoint.escJson(lines.get(0).content);
+	}
+}
@@ -0,0 +1,78 @@
+package flodila.tailfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import flodila.tailfile.TailFileObserver.FileState;
+import flodila.tailfile.TailFileServlet.TailsockEndpoint;
+
+/**
+ * Projection of one full line buffer to level, msg and traceId, against framing the whole lines
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineProjectorBenchmark {
+	private static final String[] LEVELS = {"debug", "info", "warn", "error"};
+	@Param({"json", "logfmt"})
+	public String format;
+	@Param({"512", "4096"})
+	public int lineLength;
+
+	private List<TailFileObserver.Line> lines;
+	private TailLineProjector projector;
+	private Blackhole blackhole;
+
+	@Setup(Level.Trial)
+	public void setup(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		lines = new ArrayList<>(TailFileWatcher.DEFAULT_MAX_LINES);
+		final StringBuilder payload = new StringBuilder();
+		while (payload.length() < lineLength) {
+			payload.append("order 4711 shipped to warehouse 12 ");
+		}
+		for (int i=0; i<TailFileWatcher.DEFAULT_MAX_LINES; i++) {
+			final String level = LEVELS[i % LEVELS.length];
+			final String content;
+			if ("json".equals(format)) {
+				content = "{\"ts\":\"2024-05-01T12:00:00.123Z\",\"level\":\"" + level + "\",\"logger\":\"o.s.Service\",\"ctx\":{\"user\":4711,\"tags\":[\"a\",\"b\"]},"
+						+ "\"msg\":\"" + payload + "\",\"traceId\":\"4bf92f3577b34da6a3ce929d0e0e4736\",\"extra\":\"" + payload + "\"}";
+			} else {
+				content = "ts=2024-05-01T12:00:00.123Z level=" + level + " logger=o.s.Service user=4711 msg=\"" + payload
+						+ "\" traceId=4bf92f3577b34da6a3ce929d0e0e4736 extra=\"" + payload + "\"";
+			}
+			lines.add(new TailFileObserver.Line(i, content));
+		}
+		final TailFileObserver frameSink = (state, newLines, message) -> blackhole.consume(TailsockEndpoint.jsonFrame(state, newLines, message));
+		projector = new TailLineProjector(frameSink, TailLineProjector.Format.AUTO, Arrays.asList("level", "msg", "traceId"), "info", null);
+	}
+
+	@Benchmark
+	public void wholeLines() {
+		blackhole.consume(TailsockEndpoint.jsonFrame(FileState.CONTINUED, lines, "continued"));
+	}
+
+	@Benchmark
+	public void projected() {
+		projector.update(FileState.CONTINUED, lines, "continued");
+	}
+}
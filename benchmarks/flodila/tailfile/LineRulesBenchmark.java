@@ -0,0 +1,78 @@
+package flodila.tailfile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Literal rules over one full line buffer: one automaton pass per line against one indexOf pass per rule
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineRulesBenchmark {
+	@Param({"4", "64"})
+	public int ruleCount;
+	@Param({"128", "1024"})
+	public int lineLength;
+
+	private List<String> lines;
+	private List<String> literals;
+	private TailLineRules rules;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		literals = new ArrayList<>();
+		final List<TailLineRules.Rule> ruleList = new ArrayList<>();
+		for (int r=0; r<ruleCount; r++) {
+			final String literal = r == 0 ? "ERROR" : "code-" + (r * 7919) + "-failed";
+			literals.add(literal);
+			ruleList.add(TailLineRules.Rule.literal("r" + r, literal, false));
+		}
+		rules = new TailLineRules(ruleList);
+		lines = new ArrayList<>(TailFileWatcher.DEFAULT_MAX_LINES);
+		final byte[] log = SyntheticLog.bytes("ascii", lineLength, "LF", TailFileWatcher.DEFAULT_MAX_LINES * (lineLength + 8));
+		for (String line : new String(log, StandardCharsets.UTF_8).split("\n")) {
+			// one line in 16 has something to find
+			lines.add(lines.size() % 16 == 0 ? line + " ERROR " + literals.get(lines.size() % ruleCount) : line);
+		}
+	}
+
+	@Benchmark
+	public void automaton(Blackhole blackhole) {
+		for (String line : lines) {
+			blackhole.consume(rules.match(line));
+		}
+	}
+
+	@Benchmark
+	public void indexOfPerRule(Blackhole blackhole) {
+		for (String line : lines) {
+			int found = 0;
+			for (String literal : literals) {
+				for (int i = line.indexOf(literal); i >= 0; i = line.indexOf(literal, i + 1)) {
+					found++;
+				}
+			}
+			blackhole.consume(found);
+		}
+	}
+}
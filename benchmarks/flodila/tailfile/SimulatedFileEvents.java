@@ -0,0 +1,195 @@
+package flodila.tailfile;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A virtual clock and the file events of the directories a {@link SimulatedLogWriter} writes to,
+ * for a watcher driven by {@link TailFileWatcher#runOnce()} on one thread: the same run gives the
+ * same rounds, whatever the machine.
+ * <p>
+ * Like a {@link java.nio.file.WatchService}, a key is queued once when signalled and again on
+ * {@link WatchKey#reset()} if events came in meanwhile; repeated modifications of a file coalesce.
+ * A poll without a signalled key does not wait: it moves the clock on by its timeout, or only up
+ * to {@link #wakeUpAt(long)}.
+ */
+final class SimulatedFileEvents implements TailFileEventSource, TailFileClock {
+	private long nowMillis;
+	private long wakeUpMillis = Long.MAX_VALUE;
+	private final Map<Path, SimulatedKey> dir2key = new HashMap<>();
+	private final ArrayDeque<SimulatedKey> signalled = new ArrayDeque<>();
+
+	// ----------------------------------------------------
+	// life
+	//
+	SimulatedFileEvents(long startMillis) {
+		this.nowMillis = startMillis;
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	void advance(long millis) {
+		nowMillis += millis;
+	}
+
+	/**
+	 * The next poll without a signalled key returns at millis at the latest
+	 */
+	void wakeUpAt(long millis) {
+		wakeUpMillis = millis;
+	}
+
+	void created(Path file) {
+		post(StandardWatchEventKinds.ENTRY_CREATE, file);
+	}
+
+	void modified(Path file) {
+		post(StandardWatchEventKinds.ENTRY_MODIFY, file);
+	}
+
+	void deleted(Path file) {
+		post(StandardWatchEventKinds.ENTRY_DELETE, file);
+	}
+
+	// ----------------------------------------------------
+	// TailFileClock
+	//
+	@Override
+	public long currentTimeMillis() {
+		return nowMillis;
+	}
+
+	// ----------------------------------------------------
+	// TailFileEventSource
+	//
+	@Override
+	public WatchKey register(Path dir) {
+		SimulatedKey key = dir2key.get(dir);
+		if (key == null || !key.valid) {
+			key = new SimulatedKey(dir);
+			dir2key.put(dir, key);
+		}
+		return key;
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) {
+		final SimulatedKey key = signalled.poll();
+		if (key != null) {
+			return key;
+		}
+		final long timeoutMillis = nowMillis + unit.toMillis(timeout);
+		nowMillis = wakeUpMillis > nowMillis && wakeUpMillis < timeoutMillis ? wakeUpMillis : timeoutMillis;
+		return null;
+	}
+
+	@Override
+	public void close() {
+		dir2key.clear();
+		signalled.clear();
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void post(Kind<Path> kind, Path file) {
+		final SimulatedKey key = dir2key.get(file.getParent());
+		if (key == null || !key.valid) {
+			return;
+		}
+		final Path context = file.getFileName();
+		final SimulatedEvent last = key.events.isEmpty() ? null : key.events.get(key.events.size() - 1);
+		if (last != null && kind == StandardWatchEventKinds.ENTRY_MODIFY && last.kind == kind && last.context.equals(context)) {
+			last.count++;
+		} else {
+			key.events.add(new SimulatedEvent(kind, context));
+		}
+		if (!key.signalled) {
+			key.signalled = true;
+			signalled.add(key);
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private final class SimulatedKey implements WatchKey {
+		private final Path dir;
+		private final List<SimulatedEvent> events = new ArrayList<>();
+		private boolean signalled = false;
+		private boolean valid = true;
+		SimulatedKey(Path dir) {
+			this.dir = dir;
+		}
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+		@Override
+		public List<WatchEvent<?>> pollEvents() {
+			if (events.isEmpty()) {
+				return Collections.emptyList();
+			}
+			final List<WatchEvent<?>> polled = new ArrayList<>(events);
+			events.clear();
+			return polled;
+		}
+		@Override
+		public boolean reset() {
+			if (!valid) {
+				return false;
+			}
+			if (events.isEmpty()) {
+				signalled = false;
+			} else {
+				SimulatedFileEvents.this.signalled.add(this);
+			}
+			return true;
+		}
+		@Override
+		public void cancel() {
+			valid = false;
+			events.clear();
+			SimulatedFileEvents.this.signalled.remove(this);
+			dir2key.remove(dir, this);
+		}
+		@Override
+		public Watchable watchable() {
+			return dir;
+		}
+	}
+
+	private static final class SimulatedEvent implements WatchEvent<Path> {
+		private final Kind<Path> kind;
+		private final Path context;
+		private int count = 1;
+		SimulatedEvent(Kind<Path> kind, Path context) {
+			this.kind = kind;
+			this.context = context;
+		}
+		@Override
+		public Kind<Path> kind() {
+			return kind;
+		}
+		@Override
+		public int count() {
+			return count;
+		}
+		@Override
+		public Path context() {
+			return context;
+		}
+	}
+}
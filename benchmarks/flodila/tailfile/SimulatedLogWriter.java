@@ -0,0 +1,233 @@
+package flodila.tailfile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes a log file the way applications and logrotate do, on the virtual clock of a
+ * {@link SimulatedFileEvents}, and posts the events a file system would: lines at a steady rate,
+ * bursts, lines written in two parts, rotations (rename and create) and truncations (copytruncate).
+ * <p>
+ * Every line is {@code <seq> <written at millis> <payload>}, so an observer can tell lost,
+ * repeated and late lines from the lines alone. The files are real, since the watcher maps them;
+ * only time and events are simulated.
+ */
+final class SimulatedLogWriter implements Closeable {
+	private static final String PAYLOAD = "INFO request handled user=4711 took 12ms path=/api/v1/orders status=200";
+	final Path file;
+	private final Path rotatedFile;
+	private final SimulatedFileEvents events;
+	private final Random random;
+	private double linesPerSecond = 1000.0;
+	private int burstLines = 0;
+	private long burstEveryMillis = 1000L;
+	private double partialWriteRatio = 0.0;
+	private long rotateEveryLines = 0L;
+	private long truncateEveryLines = 0L;
+	private FileChannel out;
+	private byte[] rest = null; // second part of a line written in two
+	private double linesDue = 0.0;
+	private long lastStepMillis;
+	private long nextBurstMillis;
+	private long seq = 0L;
+	private long rotations = 0L;
+	private long truncations = 0L;
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param file in a directory of its own, its real path
+	 * @param seed of the choice which lines are written in two parts
+	 */
+	SimulatedLogWriter(Path file, SimulatedFileEvents events, long seed) throws IOException {
+		this.file = file;
+		this.rotatedFile = file.resolveSibling(file.getFileName()+".1");
+		this.events = events;
+		this.random = new Random(seed);
+		this.lastStepMillis = events.currentTimeMillis();
+		this.nextBurstMillis = lastStepMillis;
+		open();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	// ----------------------------------------------------
+	// config
+	//
+	SimulatedLogWriter linesPerSecond(double linesPerSecond) {
+		this.linesPerSecond = linesPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param lines written at once every everyMillis, on top of the steady rate; 0 for none
+	 */
+	SimulatedLogWriter bursts(int lines, long everyMillis) {
+		this.burstLines = lines;
+		this.burstEveryMillis = everyMillis;
+		return this;
+	}
+
+	/**
+	 * @param ratio of the lines written in two parts, the second one a millisecond later
+	 */
+	SimulatedLogWriter partialWrites(double ratio) {
+		this.partialWriteRatio = ratio;
+		return this;
+	}
+
+	/**
+	 * @param lines after which the file is renamed and a new one created; 0 for never
+	 */
+	SimulatedLogWriter rotateEvery(long lines) {
+		this.rotateEveryLines = lines;
+		return this;
+	}
+
+	/**
+	 * @param lines after which the file is truncated; 0 for never
+	 */
+	SimulatedLogWriter truncateEvery(long lines) {
+		this.truncateEveryLines = lines;
+		return this;
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * Writes what is due at the current virtual time, and sets the wake up for the next write
+	 */
+	void step() throws IOException {
+		final long now = events.currentTimeMillis();
+		writeRest();
+		linesDue += (now - lastStepMillis) * linesPerSecond / 1000.0;
+		lastStepMillis = now;
+		while (linesDue >= 1.0) {
+			writeLine(now);
+			linesDue -= 1.0;
+		}
+		if (burstLines > 0 && nextBurstMillis <= now) {
+			for (int i=0; i<burstLines; i++) {
+				writeLine(now);
+			}
+			nextBurstMillis += burstEveryMillis;
+		}
+		long next = now + Math.max(1L, (long) Math.ceil((1.0 - linesDue) * 1000.0 / linesPerSecond));
+		if (rest != null) {
+			next = now + 1L;
+		}
+		if (burstLines > 0) {
+			next = Math.min(next, nextBurstMillis);
+		}
+		events.wakeUpAt(next);
+	}
+
+	/** lines written so far, the one written in part included */
+	long lines() {
+		return seq;
+	}
+
+	long rotations() {
+		return rotations;
+	}
+
+	long truncations() {
+		return truncations;
+	}
+
+	/**
+	 * @return the sequence number of a line written by this, -1 for other lines
+	 */
+	static long seq(String line) {
+		final int sp = line.indexOf(' ');
+		try {
+			return sp > 0 ? Long.parseLong(line.substring(0, sp)) : -1L;
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * @return the virtual time a line written by this was written at, -1 for other lines
+	 */
+	static long writtenAtMillis(String line) {
+		final int sp1 = line.indexOf(' ');
+		final int sp2 = sp1 > 0 ? line.indexOf(' ', sp1 + 1) : -1;
+		try {
+			return sp2 > 0 ? Long.parseLong(line.substring(sp1 + 1, sp2)) : -1L;
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void writeLine(long now) throws IOException {
+		writeRest();
+		if (seq > 0 && rotateEveryLines > 0 && seq % rotateEveryLines == 0) {
+			rotate();
+		}
+		if (seq > 0 && truncateEveryLines > 0 && seq % truncateEveryLines == 0) {
+			truncate();
+		}
+		final byte[] line = (seq+" "+now+" "+PAYLOAD+"\n").getBytes(StandardCharsets.US_ASCII);
+		seq++;
+		if (partialWriteRatio > 0.0 && random.nextDouble() < partialWriteRatio) {
+			final int cut = 1 + random.nextInt(line.length - 1);
+			write(Arrays.copyOf(line, cut));
+			rest = Arrays.copyOfRange(line, cut, line.length);
+		} else {
+			write(line);
+		}
+	}
+
+	private void writeRest() throws IOException {
+		if (rest != null) {
+			final byte[] bytes = rest;
+			rest = null;
+			write(bytes);
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		final ByteBuffer bb = ByteBuffer.wrap(bytes);
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+		events.modified(file);
+	}
+
+	private void rotate() throws IOException {
+		out.close();
+		Files.move(file, rotatedFile, StandardCopyOption.REPLACE_EXISTING);
+		events.deleted(file);
+		open();
+		events.created(file);
+		rotations++;
+	}
+
+	private void truncate() throws IOException {
+		out.truncate(0L);
+		events.modified(file);
+		truncations++;
+	}
+
+	private void open() throws IOException {
+		out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+}
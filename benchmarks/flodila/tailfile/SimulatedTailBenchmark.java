@@ -0,0 +1,117 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the watcher loop on a virtual clock, in simulated seconds per second: one thread
+ * writes the log of a scenario and drives {@link TailFileWatcher#runOnce()}, so rounds and batches
+ * are the same on every run and machine. What the observer gets is checked by {@link SimulatedTailTest}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulatedTailBenchmark {
+	private static final long START_MILLIS = 1_000_000_000_000L;
+	/** more than a round of any scenario brings, as older lines of a round beyond it are dropped */
+	private static final int MAX_LINE_BUFFER_COUNT = 8192;
+
+	/** steady, bursts, partial, rotations, truncations */
+	@Param({"steady", "bursts", "partial", "rotations", "truncations"})
+	public String scenario;
+
+	@Param({"10000"})
+	public int linesPerSecond;
+
+	@Param({"50"})
+	public long minTimeGapMillis;
+
+	private Path dir;
+	private SimulatedFileEvents events;
+	private SimulatedLogWriter writer;
+	private TailFileWatcher watcher;
+	private Long handle;
+	private long received;
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException, InterruptedException {
+		dir = Files.createTempDirectory("tail-sim-").toRealPath();
+		events = new SimulatedFileEvents(START_MILLIS);
+		writer = new SimulatedLogWriter(dir.resolve("app.log"), events, 42L).linesPerSecond(linesPerSecond);
+		switch (scenario) {
+		case "steady":
+			break;
+		case "bursts":
+			writer.bursts(linesPerSecond / 4, 250L);
+			break;
+		case "partial":
+			writer.partialWrites(0.25);
+			break;
+		case "rotations":
+			writer.rotateEvery(linesPerSecond / 4);
+			break;
+		case "truncations":
+			writer.truncateEvery(linesPerSecond / 4);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown scenario: "+scenario);
+		}
+		watcher = new TailFileWatcher(null, events, events);
+		received = 0L;
+		handle = watcher.newWatch(writer.file.toFile())
+				.charset(StandardCharsets.US_ASCII)
+				.minTimeGapMillis(minTimeGapMillis)
+				.maxLineBufferCount(MAX_LINE_BUFFER_COUNT)
+				.observe((state, lines, message) -> received += lines != null ? lines.size() : 0);
+		watcher.runOnce();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException, InterruptedException {
+		// let the watcher read what is left, without writing on
+		final long end = events.currentTimeMillis() + minTimeGapMillis + 2 * TailFileWatcher.TailFileWatcherThread.POLL_MILLIS;
+		while (events.currentTimeMillis() < end) {
+			watcher.runOnce();
+		}
+		watcher.unwatch(handle);
+		watcher.shutdown();
+		writer.close();
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Benchmark
+	public long simulateSecond() throws IOException, InterruptedException {
+		final long end = events.currentTimeMillis() + 1000L;
+		while (events.currentTimeMillis() < end) {
+			writer.step();
+			watcher.runOnce();
+		}
+		return received;
+	}
+}
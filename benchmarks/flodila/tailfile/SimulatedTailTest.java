@@ -0,0 +1,351 @@
+package flodila.tailfile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The watcher loop on a virtual clock, see {@link SimulatedFileEvents}: a {@link SimulatedLogWriter}
+ * writes a scenario, {@link TailFileWatcher#runOnce()} reads it, and the frames the observer got are
+ * checked line by line. Same run, same frames: the assertions are exact.
+ */
+class SimulatedTailTest {
+	private static final long START_MILLIS = 1_000_000_000_000L;
+	private static final int LINES_PER_SECOND = 10000;
+	private static final long MIN_TIME_GAP_MILLIS = 50L;
+	private static final long MAX_LATENCY_MILLIS = MIN_TIME_GAP_MILLIS + TailFileWatcher.TailFileWatcherThread.POLL_MILLIS + 1L;
+	/** more than a round of the timed scenarios brings */
+	private static final int LARGE_LINE_BUFFER_COUNT = 8192;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void steady() throws Exception {
+		try (Simulation sim = new Simulation(LARGE_LINE_BUFFER_COUNT, TailFileWatcher.CatchUpMode.STREAM, writer -> {})) {
+			sim.run(2000L);
+			sim.assertAllInOrder();
+			sim.assertLatency();
+			assertEquals(1, sim.count(TailFileObserver.FileState.RESET));
+			assertEquals(sim.frames.size() - 1, sim.count(TailFileObserver.FileState.CONTINUED));
+		}
+	}
+
+	@Test
+	void bursts() throws Exception {
+		try (Simulation sim = new Simulation(LARGE_LINE_BUFFER_COUNT, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.bursts(LINES_PER_SECOND / 4, 250L))) {
+			sim.run(2000L);
+			sim.assertAllInOrder();
+			sim.assertLatency();
+		}
+	}
+
+	@Test
+	void partialWrites() throws Exception {
+		try (Simulation sim = new Simulation(LARGE_LINE_BUFFER_COUNT, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.partialWrites(0.25))) {
+			sim.run(2000L);
+			sim.assertAllInOrder();
+			sim.assertLatency();
+		}
+	}
+
+	@Test
+	void rotations() throws Exception {
+		try (Simulation sim = new Simulation(LARGE_LINE_BUFFER_COUNT, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.rotateEvery(LINES_PER_SECOND / 4))) {
+			sim.run(2000L);
+			sim.drain();
+			assertTrue(sim.writer.rotations() > 0L);
+			assertEquals(0L, sim.disorders, "lines out of order");
+			assertEquals(sim.writer.rotations() + 1L, sim.count(TailFileObserver.FileState.RESET), "a RESET per file");
+			sim.assertLatency();
+		}
+	}
+
+	@Test
+	void truncations() throws Exception {
+		try (Simulation sim = new Simulation(LARGE_LINE_BUFFER_COUNT, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.truncateEvery(LINES_PER_SECOND / 4))) {
+			sim.run(2000L);
+			assertTrue(sim.writer.truncations() > 0L);
+			assertEquals(0L, sim.disorders, "lines out of order");
+			assertEquals(sim.writer.truncations() + 1L, sim.count(TailFileObserver.FileState.RESET), "a RESET per truncation");
+			sim.assertLatency();
+		}
+	}
+
+	/**
+	 * An append of many times maxLineBufferCount lines comes in windows of at most maxLineBufferCount, none lost
+	 */
+	@Test
+	void catchUpStreamsAllLines() throws Exception {
+		final int maxLines = TailFileWatcher.DEFAULT_MAX_LINES;
+		try (Simulation sim = new Simulation(maxLines, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.linesPerSecond(1.0).bursts(10 * maxLines, 3_600_000L))) {
+			sim.run(1L);
+			sim.drain();
+			sim.assertAllInOrder();
+			assertEquals(0, sim.count(TailFileObserver.FileState.GAP));
+			for (Frame frame : sim.frames) {
+				assertTrue(frame.lines <= maxLines, frame.lines+" lines in one frame");
+			}
+			assertTrue(sim.frames.size() > 10, "catching up in several rounds");
+		}
+	}
+
+	/**
+	 * Lines read per round and per virtual second while catching up: the logic alone decides them, not
+	 * the machine, so a drop below the thresholds is a regression
+	 */
+	@Test
+	void catchUpThroughput() throws Exception {
+		final int maxLines = TailFileWatcher.DEFAULT_MAX_LINES;
+		try (Simulation sim = new Simulation(maxLines, TailFileWatcher.CatchUpMode.STREAM,
+				writer -> writer.linesPerSecond(1.0).bursts(100 * maxLines, 3_600_000L))) {
+			sim.writer.step();
+			final long startMillis = sim.events.currentTimeMillis();
+			long rounds = 0L;
+			while (sim.received < sim.writer.lines() && rounds < 100_000L) {
+				sim.watcher.runOnce();
+				rounds++;
+			}
+			final long millis = sim.events.currentTimeMillis() - startMillis;
+			sim.assertAllInOrder();
+			// a window of maxLineBufferCount lines per round, a round per poll: less 10 percent
+			final double linesPerRound = (double) sim.received / rounds;
+			final double linesPerSecond = sim.received * 1000.0 / millis;
+			assertTrue(linesPerRound >= 0.9 * maxLines, linesPerRound+" lines per round");
+			assertTrue(linesPerSecond >= 0.9 * maxLines * 1000.0 / TailFileWatcher.TailFileWatcherThread.POLL_MILLIS, linesPerSecond+" lines per virtual second");
+		}
+	}
+
+	/**
+	 * SKIP jumps to the end of the append: one GAP, then the lines go on in order
+	 */
+	@Test
+	void catchUpSkipReportsGap() throws Exception {
+		try (Simulation sim = new Simulation(TailFileWatcher.DEFAULT_MAX_LINES, TailFileWatcher.CatchUpMode.SKIP,
+				writer -> writer.linesPerSecond(1.0).bursts(30000, 3_600_000L))) {
+			sim.run(1L);
+			sim.drain();
+			assertEquals(1, sim.count(TailFileObserver.FileState.GAP));
+			assertEquals(0L, sim.disorders, "lines out of order");
+			assertEquals(sim.writer.lines() - 1L, sim.lastSeq, "the last line written is read");
+			assertTrue(sim.received < sim.writer.lines());
+		}
+	}
+
+	/**
+	 * The tail of a file indexed up to less than a window before it comes right away, numbered from its first
+	 * line; once the line indexer is done, it comes anew, numbered from the start of the file
+	 */
+	@Test
+	void tailOfAnUnindexedFile() throws Exception {
+		final SimulatedFileEvents events = new SimulatedFileEvents(START_MILLIS);
+		final Path file = tempDir.toRealPath().resolve("big.log");
+		final StringBuilder content = new StringBuilder();
+		for (int i=0; i<10000; i++) {
+			content.append(String.format("line %05d\n", Integer.valueOf(i)));
+		}
+		Files.write(file, content.toString().getBytes(StandardCharsets.US_ASCII));
+		final TailFileWatcher watcher = new TailFileWatcher(null, events, events);
+		final List<TailFileObserver.FileState> states = new ArrayList<>();
+		final List<TailFileObserver.Line> firstLines = new ArrayList<>();
+		watcher.newWatch(file.toFile())
+				.charset(StandardCharsets.US_ASCII)
+				.maxMemMapKiB(1L)
+				.observe((state, lines, message) -> {
+					states.add(state);
+					firstLines.add(lines != null && !lines.isEmpty() ? lines.get(0) : null);
+				});
+		try {
+			final long deadline = System.currentTimeMillis() + 10000L;
+			while (states.size() < 2 && System.currentTimeMillis() < deadline) {
+				watcher.runOnce(); // the line indexer runs on a thread of its own
+			}
+			assertEquals(Arrays.asList(TailFileObserver.FileState.RESET, TailFileObserver.FileState.RESET), states);
+			assertTrue(firstLines.get(0).lineno < 100L, "numbered from the tail: "+firstLines.get(0).lineno);
+			final TailFileObserver.Line renumbered = firstLines.get(1);
+			assertEquals(String.format("line %05d", Long.valueOf(renumbered.lineno)), renumbered.content);
+		} finally {
+			watcher.shutdown();
+		}
+	}
+
+	/**
+	 * A merged line waits the reorder window of the watcher's clock for earlier lines of the other source
+	 */
+	@Test
+	void mergeWaitsOnTheVirtualClock() throws Exception {
+		final long reorderWindowMillis = 1000L;
+		final SimulatedFileEvents events = new SimulatedFileEvents(START_MILLIS);
+		final Path a = Files.createDirectories(tempDir.toRealPath().resolve("a")).resolve("app.log");
+		final Path b = Files.createDirectories(tempDir.toRealPath().resolve("b")).resolve("app.log");
+		Files.createFile(a);
+		Files.createFile(b);
+		final TailFileWatcher watcher = new TailFileWatcher(null, events, events);
+		final List<String> merged = new ArrayList<>();
+		final List<Long> mergedAtMillis = new ArrayList<>();
+		final TailFileMerger merger = new TailFileMerger(watcher, (state, lines, message) -> {
+			if (lines != null) {
+				for (TailFileObserver.Line line : lines) {
+					merged.add(line.source+":"+line.content);
+					mergedAtMillis.add(events.currentTimeMillis());
+				}
+			}
+		}, reorderWindowMillis, LARGE_LINE_BUFFER_COUNT);
+		final String pattern = "HH:mm:ss.SSS";
+		watcher.newWatch(a.toFile()).minTimeGapMillis(0L).observe(merger.newSource("a", pattern, ZoneOffset.UTC));
+		watcher.newWatch(b.toFile()).minTimeGapMillis(0L).observe(merger.newSource("b", pattern, ZoneOffset.UTC));
+		watcher.addTickListener(merger::tick);
+		try {
+			runFor(watcher, events, 100L);
+			append(events, a, "10:00:00.200 late");
+			final long arrivalMillis = events.currentTimeMillis();
+			runFor(watcher, events, 100L);
+			append(events, b, "10:00:00.100 early");
+			runFor(watcher, events, 2 * reorderWindowMillis);
+			assertEquals(Arrays.asList("b:10:00:00.100 early", "a:10:00:00.200 late"), merged);
+			final long waitedMillis = mergedAtMillis.get(1).longValue() - arrivalMillis;
+			assertTrue(waitedMillis >= reorderWindowMillis && waitedMillis <= reorderWindowMillis + 2 * TailFileWatcher.TailFileWatcherThread.POLL_MILLIS,
+					"waited "+waitedMillis+" ms");
+		} finally {
+			watcher.shutdown();
+		}
+	}
+
+	private static void runFor(TailFileWatcher watcher, SimulatedFileEvents events, long millis) throws InterruptedException {
+		final long end = events.currentTimeMillis() + millis;
+		while (events.currentTimeMillis() < end) {
+			watcher.runOnce();
+		}
+	}
+
+	private static void append(SimulatedFileEvents events, Path file, String line) throws IOException {
+		Files.write(file, (line+"\n").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+		events.modified(file);
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private static final class Frame {
+		final TailFileObserver.FileState state;
+		final int lines;
+		Frame(TailFileObserver.FileState state, int lines) {
+			this.state = state;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * One writer, one watch, one watcher on a virtual clock, and what the observer saw
+	 */
+	private final class Simulation implements AutoCloseable {
+		final SimulatedFileEvents events = new SimulatedFileEvents(START_MILLIS);
+		final SimulatedLogWriter writer;
+		final TailFileWatcher watcher;
+		final List<Frame> frames = new ArrayList<>();
+		long received = 0L;
+		long lastSeq = -1L;
+		long disorders = 0L;
+		long maxLatencyMillis = 0L;
+		Simulation(int maxLineBufferCount, TailFileWatcher.CatchUpMode catchUpMode, Consumer<SimulatedLogWriter> scenario) throws IOException, InterruptedException {
+			writer = new SimulatedLogWriter(tempDir.toRealPath().resolve("app.log"), events, 42L).linesPerSecond(LINES_PER_SECOND);
+			scenario.accept(writer);
+			watcher = new TailFileWatcher(null, events, events);
+			watcher.newWatch(writer.file.toFile())
+					.charset(StandardCharsets.US_ASCII)
+					.minTimeGapMillis(MIN_TIME_GAP_MILLIS)
+					.maxLineBufferCount(maxLineBufferCount)
+					.catchUp(catchUpMode)
+					.observe(this::update);
+			watcher.runOnce();
+		}
+		/**
+		 * Writes and reads for millis of virtual time, then reads what is left
+		 */
+		void run(long millis) throws IOException, InterruptedException {
+			final long end = events.currentTimeMillis() + millis;
+			while (events.currentTimeMillis() < end) {
+				writer.step();
+				watcher.runOnce();
+			}
+			final long drained = events.currentTimeMillis() + MIN_TIME_GAP_MILLIS + 2 * TailFileWatcher.TailFileWatcherThread.POLL_MILLIS;
+			while (events.currentTimeMillis() < drained) {
+				watcher.runOnce();
+			}
+		}
+		/**
+		 * Reads on until a second of virtual time brings nothing new
+		 */
+		void drain() throws IOException, InterruptedException {
+			long before;
+			do {
+				before = received;
+				final long end = events.currentTimeMillis() + 1000L;
+				while (events.currentTimeMillis() < end) {
+					watcher.runOnce();
+				}
+			} while (received != before);
+		}
+		@Override
+		public void close() throws IOException {
+			watcher.shutdown();
+			writer.close();
+		}
+		int count(TailFileObserver.FileState state) {
+			int count = 0;
+			for (Frame frame : frames) {
+				if (frame.state == state) {
+					count++;
+				}
+			}
+			return count;
+		}
+		void assertAllInOrder() {
+			assertEquals(0L, disorders, "lines out of order");
+			assertEquals(writer.lines(), received, "lines read");
+		}
+		void assertLatency() {
+			assertTrue(maxLatencyMillis <= MAX_LATENCY_MILLIS, "latency up to "+maxLatencyMillis+" ms");
+		}
+		private void update(TailFileObserver.FileState state, List<TailFileObserver.Line> lines, String message) {
+			frames.add(new Frame(state, lines != null ? lines.size() : 0));
+			if (lines == null) {
+				return;
+			}
+			final boolean resync = state != TailFileObserver.FileState.CONTINUED;
+			boolean first = true;
+			for (TailFileObserver.Line line : lines) {
+				final long seq = SimulatedLogWriter.seq(line.content);
+				if (seq < 0) {
+					disorders++;
+					continue;
+				}
+				if (seq <= lastSeq || (seq != lastSeq + 1 && !(resync && first))) {
+					disorders++;
+				}
+				first = false;
+				lastSeq = seq;
+				received++;
+				maxLatencyMillis = Math.max(maxLatencyMillis, events.currentTimeMillis() - SimulatedLogWriter.writtenAtMillis(line.content));
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible log content for the benchmarks
+ */
+final class SyntheticLog {
+	private static final String ASCII_WORDS = "INFO request handled user=4711 took 12ms path=/api/v1/orders status=200 ";
+	private static final String UTF8_WORDS = "INFO Größe überschritten – ошибка запроса 请求失败 ✓ status=200 ";
+
+	private SyntheticLog() {
+	}
+
+	/**
+	 * @param content "ascii" or "utf8"
+	 * @param lineLength characters per line, line terminator excluded
+	 * @param eol "LF" or "CRLF"
+	 * @param totalBytes approximate size of the result
+	 */
+	static byte[] bytes(String content, int lineLength, String eol, int totalBytes) {
+		final String words = "utf8".equals(content) ? UTF8_WORDS : ASCII_WORDS;
+		final String terminator = "CRLF".equals(eol) ? "\r\n" : "\n";
+		final StringBuilder sb = new StringBuilder(totalBytes);
+		final Random random = new Random(42L);
+		long lineNo = 0;
+		while (sb.length() < totalBytes) {
+			sb.append(lineNo++).append(' ');
+			int offset = random.nextInt(words.length());
+			for (int i=0; i<lineLength; i++) {
+				sb.append(words.charAt((offset + i) % words.length()));
+			}
+			sb.append(terminator);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static Path write(String content, int lineLength, String eol, int totalBytes) throws IOException {
+		final Path path = Files.createTempFile("tail-bench-", ".log");
+		Files.write(path, bytes(content, lineLength, eol, totalBytes));
+		return path;
+	}
+
+	static List<TailFileObserver.Line> lines(String content, int lineLength, int count) {
+		final String words;
+		if ("utf8".equals(content)) {
+			words = UTF8_WORDS;
+		} else if ("escapes".equals(content)) {
+			words = "{\"msg\":\"C:\\\\temp\\\\x\",\t\"url\":\"http://host/a/b\"} ";
+		} else {
+			words = ASCII_WORDS;
+		}
+		final List<TailFileObserver.Line> lines = new ArrayList<>(count);
+		final StringBuilder sb = new StringBuilder(lineLength);
+		for (int n=0; n<count; n++) {
+			sb.setLength(0);
+			for (int i=0; i<lineLength; i++) {
+				sb.append(words.charAt((n + i) % words.length()));
+			}
+			lines.add(new TailFileObserver.Line(n, sb.toString()));
+		}
+		return lines;
+	}
+}
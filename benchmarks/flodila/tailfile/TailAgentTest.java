@@ -0,0 +1,225 @@
+package flodila.tailfile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * An agent and a client on localhost, with a proxy in between that cuts the connection: the client
+ * reconnects and resumes, and every line comes through once, in order.
+ */
+class TailAgentTest {
+	private static final int MAX_LINE_LENGTH = 10;
+	private static final long TIMEOUT_MILLIS = 10000L;
+
+	@TempDir
+	Path tempDir;
+
+	private Path file;
+	private TailFileWatcher watcher;
+	private TailAgent agent;
+	private LoopbackProxy proxy;
+	private TailAgentClient client;
+	private final List<TailFileObserver.Line> received = Collections.synchronizedList(new ArrayList<>());
+	private final List<TailFileObserver.FileState> states = Collections.synchronizedList(new ArrayList<>());
+
+	@BeforeEach
+	void start() throws IOException {
+		file = Files.createFile(tempDir.toRealPath().resolve("app.log"));
+		watcher = new TailFileWatcher();
+		agent = new TailAgent(watcher, InetAddress.getLoopbackAddress(), 0);
+		agent.publish("app", watcher.newWatch(file.toFile())
+				.charset(StandardCharsets.US_ASCII)
+				.minTimeGapMillis(10L)
+				.maxLineLength(MAX_LINE_LENGTH)
+				.longLines(TailFileWatcher.LongLineMode.SPLIT), 1000);
+		agent.start();
+		proxy = new LoopbackProxy(agent.getPort());
+		client = new TailAgentClient(InetAddress.getLoopbackAddress().getHostAddress(), proxy.getPort(), 1000);
+		client.start();
+		client.subscribe("app", (state, lines, message) -> {
+			states.add(state);
+			if (lines != null) {
+				received.addAll(lines);
+			}
+		});
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		client.close();
+		proxy.close();
+		agent.close();
+		watcher.shutdown();
+	}
+
+	@Test
+	void resumesAfterConnectionLoss() throws Exception {
+		final List<String> written = new ArrayList<>();
+		for (int round=0; round<3; round++) {
+			for (int i=0; i<50; i++) {
+				written.add(String.format("line %04d", written.size()));
+			}
+			append(String.join("\n", written.subList(written.size() - 50, written.size())) + "\n");
+			await(() -> received.size() >= written.size());
+			proxy.cut(); // the lines of the next round are written while the client reconnects
+		}
+		assertEquals(written, contents());
+		for (int i=0; i<received.size(); i++) {
+			assertEquals(i, received.get(i).lineno);
+		}
+		assertTrue(proxy.accepted() >= 3, proxy.accepted()+" connections");
+		assertEquals(TailFileObserver.FileState.RESET, states.get(0));
+		assertTrue(!states.contains(TailFileObserver.FileState.GAP), "no lines lost: "+states);
+	}
+
+	/**
+	 * The client got the first fragments of a long line split: it resumes with the rest of it
+	 */
+	@Test
+	void resumesInTheMiddleOfASplitLine() throws Exception {
+		append("0123456789abcdefghijK");
+		await(() -> received.size() >= 2);
+		proxy.cut();
+		append("LMNOPQRSTUVWXYZ\nnext\n");
+		await(() -> contents().contains("next"));
+		assertEquals(5, received.size(), "fragments and lines: "+contents());
+		final StringBuilder line = new StringBuilder();
+		for (TailFileObserver.Line fragment : received.subList(0, 4)) {
+			assertEquals(0L, fragment.lineno);
+			assertEquals(line.length(), fragment.offset, "offset of "+fragment.content);
+			line.append(fragment.content);
+		}
+		assertEquals("0123456789abcdefghijKLMNOPQRSTUVWXYZ", line.toString());
+		assertEquals(1L, received.get(4).lineno);
+		assertTrue(proxy.accepted() >= 2, proxy.accepted()+" connections");
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void append(String text) throws IOException {
+		Files.write(file, text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+	}
+
+	private List<String> contents() {
+		final List<String> contents = new ArrayList<>();
+		synchronized (received) {
+			for (TailFileObserver.Line line : received) {
+				contents.add(line.content);
+			}
+		}
+		return contents;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "timed out");
+			Thread.sleep(10L);
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	/**
+	 * Passes the bytes of every connection on to a port on localhost, until {@link #cut()} closes them
+	 */
+	private static final class LoopbackProxy implements Closeable {
+		private final ServerSocket serverSocket;
+		private final int targetPort;
+		private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger accepted = new AtomicInteger();
+		LoopbackProxy(int targetPort) throws IOException {
+			this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.targetPort = targetPort;
+			daemon(this::accept);
+		}
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+		int accepted() {
+			return accepted.get();
+		}
+		void cut() {
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+			cut();
+		}
+		private void accept() {
+			while (!serverSocket.isClosed()) {
+				try {
+					final Socket client = serverSocket.accept();
+					final Socket agent = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+					sockets.add(client);
+					sockets.add(agent);
+					accepted.incrementAndGet();
+					daemon(() -> pump(client, agent));
+					daemon(() -> pump(agent, client));
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+		private void pump(Socket from, Socket to) {
+			final byte[] buf = new byte[8192];
+			try {
+				final InputStream in = from.getInputStream();
+				final OutputStream out = to.getOutputStream();
+				int n;
+				while ((n = in.read(buf)) >= 0) {
+					out.write(buf, 0, n);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// cut
+			} finally {
+				closeQuietly(from);
+				closeQuietly(to);
+				sockets.remove(from);
+				sockets.remove(to);
+			}
+		}
+		private static void daemon(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "LoopbackProxy");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		private static void closeQuietly(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package flodila.tailfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless tail: publishes watched files under a name to {@link TailAgentClient}s over TCP.
+ * Every file is watched once, however many clients subscribe to it; a client that reconnects
+ * resumes from the last line it got, see {@link TailFanout}.
+ * <p>
+ * Every connection has a writer thread and a bounded queue; a client that falls behind by more
+ * than {@value #MAX_QUEUED_FRAMES} frames is disconnected, so that it never holds up the watcher.
+ * There is neither authentication nor encryption: bind it to an internal interface.
+ */
+public final class TailAgent implements Closeable {
+	public static final int DEFAULT_PORT = 7311;
+	static final int MAX_QUEUED_FRAMES = 1024;
+	private final TailFileWatcher tailFileWatcher;
+	private final ServerSocket serverSocket;
+	private final Map<String, TailFanout> name2fanout = new ConcurrentHashMap<>();
+	private final List<Long> handles = new ArrayList<>();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param bindAddress null for all interfaces
+	 * @param port 0 for any free one, see {@link #getPort()}
+	 */
+	public TailAgent(TailFileWatcher tailFileWatcher, InetAddress bindAddress, int port) throws IOException {
+		this.tailFileWatcher = tailFileWatcher;
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(bindAddress, port));
+	}
+
+	public void start() {
+		final Thread acceptor = new Thread(this::accept, "TailAgent-" + getPort());
+		acceptor.start();
+		System.out.println("Tail agent listening on "+serverSocket.getLocalSocketAddress());
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		synchronized (handles) {
+			for (Long handle : handles) {
+				tailFileWatcher.unwatch(handle);
+			}
+			handles.clear();
+		}
+	}
+
+	/**
+	 * Runs an agent until it is killed. The only argument is a properties file:
+	 * <pre>
+	 * port=7311
+	 * bind=10.0.0.12
+	 * tails=app,gc
+	 * app.path=/var/log/app.log
+	 * app.charset=utf-8
+	 * gc.path=/var/log/gc.log
+	 * maxLineBufferCount=1024
+	 * maxLineLength=65536
+	 * longLines=truncate
+	 * checkpointFile=/var/lib/tail/agent-checkpoints.properties
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.out.println("Usage: java flodila.tailfile.TailAgent agent.properties");
+			System.exit(2);
+		}
+		final Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(new File(args[0]).toPath())) {
+			props.load(in);
+		}
+		final String checkpointFile = props.getProperty("checkpointFile");
+		final TailFileWatcher tailFileWatcher = new TailFileWatcher(checkpointFile != null ? new File(checkpointFile.trim()) : null);
+		final String bind = props.getProperty("bind");
+		final TailAgent agent = new TailAgent(tailFileWatcher,
+				bind != null ? InetAddress.getByName(bind.trim()) : null,
+				Integer.parseInt(props.getProperty("port", Integer.toString(DEFAULT_PORT)).trim()));
+		final int maxLineBufferCount = Integer.parseInt(props.getProperty("maxLineBufferCount", Integer.toString(TailFileWatcher.DEFAULT_MAX_LINES)).trim());
+		final int maxLineLength = Integer.parseInt(props.getProperty("maxLineLength", Integer.toString(TailFileWatcher.DEFAULT_MAX_LINE_LENGTH)).trim());
+		final String longLines = props.getProperty("longLines");
+		for (String name : props.getProperty("tails", "").split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			final String path = props.getProperty(name + ".path");
+			if (path == null) {
+				throw new IllegalArgumentException("No "+name+".path");
+			}
+			final String charset = props.getProperty(name + ".charset");
+			final String catchUp = props.getProperty(name + ".catchUp");
+			agent.publish(name, tailFileWatcher.newWatch(new File(path.trim()))
+					.charset(charset != null ? Charset.forName(charset.trim()) : null)
+					.catchUp(catchUp != null ? TailFileWatcher.CatchUpMode.valueOf(catchUp.trim().toUpperCase(Locale.ROOT)) : null)
+					.maxLineBufferCount(maxLineBufferCount)
+					.maxLineLength(maxLineLength)
+					.longLines(longLines != null ? TailFileWatcher.LongLineMode.valueOf(longLines.trim().toUpperCase(Locale.ROOT)) : null)
+					.checkpointKey(checkpointFile != null ? "agent." + name : null),
+					maxLineBufferCount);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			agent.close();
+			tailFileWatcher.shutdown();
+		}));
+		agent.start();
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * Watches a file right away and publishes it under name
+	 * @param bufferedLines to keep for subscribers that come or reconnect later
+	 */
+	public void publish(String name, TailFileWatcher.WatchBuilder watch, int bufferedLines) {
+		final TailFanout fanout = new TailFanout(bufferedLines);
+		if (name2fanout.putIfAbsent(name, fanout) != null) {
+			throw new IllegalArgumentException("Already published: "+name);
+		}
+		synchronized (handles) {
+			handles.add(watch.observe(fanout));
+		}
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				final Connection connection = new Connection(socket);
+				connections.add(connection);
+				connection.start();
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private final class Connection {
+		private final Socket socket;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+		private final Map<Integer, Subscription> channel2subscription = new HashMap<>();
+		private volatile boolean connectionClosed = false;
+		public Connection(Socket socket) {
+			this.socket = socket;
+		}
+		public void start() {
+			final String name = "TailAgent-" + socket.getRemoteSocketAddress();
+			new Thread(this::read, name + "-reader").start();
+			new Thread(this::write, name + "-writer").start();
+		}
+		public void close() {
+			if (connectionClosed) {
+				return;
+			}
+			connectionClosed = true;
+			connections.remove(this);
+			final List<Subscription> subscriptions;
+			synchronized (channel2subscription) {
+				subscriptions = new ArrayList<>(channel2subscription.values());
+				channel2subscription.clear();
+			}
+			for (Subscription subscription : subscriptions) {
+				subscription.fanout.unsubscribe(subscription);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			queue.offer(new byte[0]); // wakes the writer up
+		}
+		/**
+		 * Called by fanouts, i.e. on the watcher thread: never blocks
+		 */
+		public void send(byte[] frame) {
+			if (!connectionClosed && !queue.offer(frame)) {
+				System.out.println("Tail agent client "+socket.getRemoteSocketAddress()+" too slow, disconnecting");
+				close();
+			}
+		}
+		private void read() {
+			try {
+				socket.setSoTimeout(0); // clients only talk when they subscribe
+				socket.setTcpNoDelay(true);
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				if (in.readInt() != TailAgentProtocol.MAGIC || in.readInt() != TailAgentProtocol.VERSION) {
+					throw new ProtocolException("Not a tail agent client or wrong version");
+				}
+				while (!connectionClosed) {
+					final DataInputStream frame = TailAgentProtocol.readFrame(in);
+					final byte type = frame.readByte();
+					if (type == TailAgentProtocol.SUBSCRIBE) {
+						final int channel = frame.readInt();
+						final String name = TailAgentProtocol.readString(frame);
+						final long epoch = frame.readLong();
+						final long fromLineNo = frame.readLong();
+						subscribe(channel, name, epoch, fromLineNo);
+					} else if (type == TailAgentProtocol.UNSUBSCRIBE) {
+						unsubscribe(frame.readInt());
+					} else {
+						throw new ProtocolException("Unknown frame type "+type);
+					}
+				}
+			} catch (IOException e) {
+				if (!connectionClosed && !(e instanceof SocketException)) {
+					System.out.println("Tail agent client "+socket.getRemoteSocketAddress()+": "+e);
+				}
+			} finally {
+				close();
+			}
+		}
+		private void write() {
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+				while (!connectionClosed) {
+					byte[] frame = queue.poll(TailAgentProtocol.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+					if (frame == null) {
+						frame = TailAgentProtocol.heartbeat();
+					}
+					while (frame != null && frame.length > 0) {
+						TailAgentProtocol.writeFrame(out, frame);
+						frame = queue.poll();
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				if (!connectionClosed) {
+					System.out.println("Tail agent client "+socket.getRemoteSocketAddress()+": "+e);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+			}
+		}
+		private void subscribe(int channel, String name, long epoch, long fromLineNo) {
+			unsubscribe(channel);
+			final TailFanout fanout = name2fanout.get(name);
+			if (fanout == null) {
+				send(TailAgentProtocol.lines(channel, TailFileObserver.FileState.ERROR, 0L, null, "No such tail: "+name));
+				return;
+			}
+			final Subscription subscription = new Subscription(channel, fanout);
+			synchronized (channel2subscription) {
+				channel2subscription.put(channel, subscription);
+			}
+			fanout.subscribe(subscription, epoch, fromLineNo);
+		}
+		private void unsubscribe(int channel) {
+			final Subscription subscription;
+			synchronized (channel2subscription) {
+				subscription = channel2subscription.remove(channel);
+			}
+			if (subscription != null) {
+				subscription.fanout.unsubscribe(subscription);
+			}
+		}
+		private final class Subscription implements TailFileObserver {
+			private final int channel;
+			public final TailFanout fanout;
+			public Subscription(int channel, TailFanout fanout) {
+				this.channel = channel;
+				this.fanout = fanout;
+			}
+			@Override
+			public void update(FileState state, List<Line> newLines, String message) {
+				send(TailAgentProtocol.lines(channel, state, fanout.epoch(), newLines, message));
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package flodila.tailfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection to one {@link TailAgent}, kept up with reconnects. Every remote tail is subscribed
+ * to once, however many observers it has locally. After a reconnect a subscription resumes with
+ * the last line it got, so lines still buffered by the agent are not lost; what it got of that line
+ * already, e.g. the first fragments of a long line split, is dropped.
+ * <p>
+ * Observers are called on the thread of the client, through a {@link TailFanout}.
+ */
+public final class TailAgentClient implements Closeable {
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final long MIN_BACKOFF_MILLIS = 500L;
+	private static final long MAX_BACKOFF_MILLIS = 30000L;
+	private final String host;
+	private final int port;
+	private final int bufferedLines;
+	private final Thread thread;
+	// guarded by this
+	private final Map<String, RemoteTail> name2remote = new HashMap<>();
+	private final Map<Integer, RemoteTail> channel2remote = new HashMap<>();
+	private int nextChannel = 1;
+	private Socket socket = null;
+	private DataOutputStream out = null;
+	private volatile boolean closed = false;
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param bufferedLines per remote tail, for observers that come later
+	 */
+	public TailAgentClient(String host, int port, int bufferedLines) {
+		this.host = host;
+		this.port = port;
+		this.bufferedLines = bufferedLines;
+		this.thread = new Thread(this::run, "TailAgentClient-" + host + ":" + port);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * @param hostAndPort e.g. node12:7311; the port defaults to {@value TailAgent#DEFAULT_PORT}
+	 */
+	public static TailAgentClient of(String hostAndPort, int bufferedLines) {
+		final String s = hostAndPort.trim();
+		final int colon = s.lastIndexOf(':');
+		if (colon > 0 && s.indexOf(']', colon) < 0) {
+			return new TailAgentClient(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)), bufferedLines);
+		}
+		return new TailAgentClient(s, TailAgent.DEFAULT_PORT, bufferedLines);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			closeSocket();
+		}
+		thread.interrupt();
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @param name the tail is published under on the agent
+	 */
+	public void subscribe(String name, TailFileObserver observer) {
+		final RemoteTail remote;
+		synchronized (this) {
+			RemoteTail existing = name2remote.get(name);
+			if (existing == null) {
+				existing = new RemoteTail(nextChannel++, name, new TailFanout(bufferedLines));
+				name2remote.put(name, existing);
+				channel2remote.put(existing.channel, existing);
+				send(TailAgentProtocol.subscribe(existing.channel, name, existing.epoch, existing.lastLineNo));
+			}
+			remote = existing;
+		}
+		remote.fanout.subscribe(observer, 0L, -1L);
+	}
+
+	public void unsubscribe(String name, TailFileObserver observer) {
+		synchronized (this) {
+			final RemoteTail remote = name2remote.get(name);
+			if (remote != null && remote.fanout.unsubscribe(observer) == 0) {
+				name2remote.remove(name);
+				channel2remote.remove(remote.channel);
+				send(TailAgentProtocol.unsubscribe(remote.channel));
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void run() {
+		long backoffMillis = MIN_BACKOFF_MILLIS;
+		String lastProblem = null;
+		while (!closed) {
+			final Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+				s.setSoTimeout(TailAgentProtocol.READ_TIMEOUT_MILLIS);
+				s.setTcpNoDelay(true);
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+				final DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+				o.writeInt(TailAgentProtocol.MAGIC);
+				o.writeInt(TailAgentProtocol.VERSION);
+				synchronized (this) {
+					socket = s;
+					out = o;
+					for (RemoteTail remote : name2remote.values()) {
+						send(TailAgentProtocol.subscribe(remote.channel, remote.name, remote.epoch, remote.lastLineNo));
+					}
+					o.flush();
+				}
+				System.out.println("Connected to tail agent "+this);
+				lastProblem = null;
+				backoffMillis = MIN_BACKOFF_MILLIS;
+				read(in);
+			} catch (IOException e) {
+				if (!closed && !e.toString().equals(lastProblem)) {
+					lastProblem = e.toString();
+					System.out.println("Tail agent "+this+": "+e);
+					tellObservers("agent unreachable, reconnecting: " + lastProblem);
+				}
+			} finally {
+				synchronized (this) {
+					if (socket == s) {
+						socket = null;
+						out = null;
+					}
+				}
+				try {
+					s.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+			try {
+				Thread.sleep(backoffMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			backoffMillis = Math.min(MAX_BACKOFF_MILLIS, 2L * backoffMillis);
+		}
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		while (!closed) {
+			final DataInputStream frame = TailAgentProtocol.readFrame(in);
+			final byte type = frame.readByte();
+			if (type == TailAgentProtocol.HEARTBEAT) {
+				continue;
+			} else if (type != TailAgentProtocol.LINES) {
+				throw new ProtocolException("Unknown frame type "+type);
+			}
+			final TailAgentProtocol.LinesFrame lines = TailAgentProtocol.readLines(frame);
+			final RemoteTail remote;
+			synchronized (this) {
+				remote = channel2remote.get(lines.channel);
+			}
+			if (remote == null) {
+				continue; // unsubscribed meanwhile
+			}
+			if (lines.epoch != remote.epoch) {
+				remote.epoch = lines.epoch;
+				remote.lastLineNo = -1L;
+				remote.lastOffset = -1L;
+			}
+			remote.fanout.update(lines.state, remote.unseen(lines.lines), lines.message);
+		}
+	}
+
+	/**
+	 * Tells the observers without touching their lines
+	 */
+	private void tellObservers(String message) {
+		final List<RemoteTail> remotes;
+		synchronized (this) {
+			remotes = new ArrayList<>(name2remote.values());
+		}
+		for (RemoteTail remote : remotes) {
+			remote.fanout.update(TailFileObserver.FileState.CONTINUED, Collections.emptyList(), message);
+		}
+	}
+
+	/**
+	 * Caller holds the lock; a failing connection is closed and left to the reader to reconnect
+	 */
+	private void send(byte[] frame) {
+		if (out == null) {
+			return; // sent on connect
+		}
+		try {
+			TailAgentProtocol.writeFrame(out, frame);
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Tail agent "+this+": "+e);
+			closeSocket();
+		}
+	}
+
+	private void closeSocket() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private static final class RemoteTail {
+		public final int channel;
+		public final String name;
+		public final TailFanout fanout;
+		// reader thread only, and read on connect
+		public volatile long epoch = 0L;
+		/** of the last line or fragment got, -1 for none */
+		public volatile long lastLineNo = -1L;
+		public volatile long lastOffset = -1L;
+		public RemoteTail(int channel, String name, TailFanout fanout) {
+			this.channel = channel;
+			this.name = name;
+			this.fanout = fanout;
+		}
+		/**
+		 * @return lines without those got before, as a resumed subscription starts with the last line got
+		 */
+		public List<TailFileObserver.Line> unseen(List<TailFileObserver.Line> lines) {
+			if (lines == null) {
+				return null;
+			}
+			final List<TailFileObserver.Line> unseen = new ArrayList<>(lines.size());
+			for (TailFileObserver.Line line : lines) {
+				if (line.lineno > lastLineNo || line.lineno == lastLineNo && line.offset > lastOffset) {
+					unseen.add(line);
+					lastLineNo = line.lineno;
+					lastOffset = line.offset;
+				}
+			}
+			return unseen;
+		}
+	}
+}
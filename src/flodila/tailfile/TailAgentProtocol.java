@@ -0,0 +1,191 @@
+package flodila.tailfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wire format between {@link TailAgent} and {@link TailAgentClient}.
+ * <p>
+ * After the client sent MAGIC and VERSION, both sides exchange frames: an int length and that
+ * many bytes, starting with the type. Strings are an int length and UTF-8 bytes, -1 for null.
+ * <pre>
+ * client: SUBSCRIBE   int channel, string name, long epoch, long fromLineNo (negative for the tail)
+ * client: UNSUBSCRIBE int channel
+ * agent:  LINES       int channel, byte state, long epoch, string message, int count, count * (long lineno, string content, string source, long offset, long omitted)
+ * agent:  HEARTBEAT   when idle
+ * </pre>
+ */
+final class TailAgentProtocol {
+	static final int MAGIC = 0x5441494c; // TAIL
+	static final int VERSION = 2;
+	static final byte SUBSCRIBE = 'S';
+	static final byte UNSUBSCRIBE = 'U';
+	static final byte LINES = 'L';
+	static final byte HEARTBEAT = 'H';
+	static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+	static final int HEARTBEAT_MILLIS = 5000;
+	/** a connection without any frame for this long is dead */
+	static final int READ_TIMEOUT_MILLIS = 3 * HEARTBEAT_MILLIS;
+
+	private TailAgentProtocol() {
+	}
+
+	// ----------------------------------------------------
+	// frames
+	//
+	static byte[] subscribe(int channel, String name, long epoch, long fromLineNo) {
+		final Encoder enc = new Encoder(SUBSCRIBE);
+		enc.writeInt(channel);
+		enc.string(name);
+		enc.writeLong(epoch);
+		enc.writeLong(fromLineNo);
+		return enc.bytes();
+	}
+
+	static byte[] unsubscribe(int channel) {
+		final Encoder enc = new Encoder(UNSUBSCRIBE);
+		enc.writeInt(channel);
+		return enc.bytes();
+	}
+
+	static byte[] heartbeat() {
+		return new Encoder(HEARTBEAT).bytes();
+	}
+
+	static byte[] lines(int channel, TailFileObserver.FileState state, long epoch, List<TailFileObserver.Line> lines, String message) {
+		final Encoder enc = new Encoder(LINES);
+		enc.writeInt(channel);
+		enc.writeByte(state.ordinal());
+		enc.writeLong(epoch);
+		enc.string(message);
+		enc.writeInt(lines != null ? lines.size() : -1);
+		if (lines != null) {
+			for (TailFileObserver.Line line : lines) {
+				enc.writeLong(line.lineno);
+				enc.string(line.content);
+				enc.string(line.source);
+				enc.writeLong(line.offset);
+				enc.writeLong(line.omitted);
+			}
+		}
+		return enc.bytes();
+	}
+
+	static LinesFrame readLines(DataInputStream in) throws IOException {
+		final int channel = in.readInt();
+		final int state = in.readByte();
+		final TailFileObserver.FileState[] states = TailFileObserver.FileState.values();
+		if (state < 0 || state >= states.length) {
+			throw new ProtocolException("Unknown state "+state);
+		}
+		final long epoch = in.readLong();
+		final String message = readString(in);
+		final int count = in.readInt();
+		List<TailFileObserver.Line> lines = null;
+		if (count >= 0) {
+			lines = new ArrayList<>(Math.min(count, 1024));
+			for (int i=0; i<count; i++) {
+				final long lineno = in.readLong();
+				final String content = readString(in);
+				final String source = readString(in);
+				lines.add(new TailFileObserver.Line(lineno, content, source, Collections.emptyList(), in.readLong(), in.readLong()));
+			}
+		}
+		return new LinesFrame(channel, states[state], epoch, message, lines);
+	}
+
+	// ----------------------------------------------------
+	// framing
+	//
+	static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+		out.writeInt(frame.length);
+		out.write(frame);
+	}
+
+	/**
+	 * @return the frame, to be read starting with its type
+	 */
+	static DataInputStream readFrame(DataInputStream in) throws IOException {
+		final int len = in.readInt();
+		if (len <= 0 || len > MAX_FRAME_BYTES) {
+			throw new ProtocolException("Bad frame length "+len);
+		}
+		final byte[] frame = new byte[len];
+		in.readFully(frame);
+		return new DataInputStream(new ByteArrayInputStream(frame));
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		final int len = in.readInt();
+		if (len < 0) {
+			return null;
+		}
+		if (len > MAX_FRAME_BYTES) {
+			throw new ProtocolException("Bad string length "+len);
+		}
+		final byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	static final class LinesFrame {
+		public final int channel;
+		public final TailFileObserver.FileState state;
+		public final long epoch;
+		public final String message;
+		public final List<TailFileObserver.Line> lines;
+		public LinesFrame(int channel, TailFileObserver.FileState state, long epoch, String message, List<TailFileObserver.Line> lines) {
+			this.channel = channel;
+			this.state = state;
+			this.epoch = epoch;
+			this.message = message;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * Big endian like DataOutputStream, without its IOException
+	 */
+	private static final class Encoder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		public Encoder(byte type) {
+			bytes.write(type);
+		}
+		public void writeByte(int b) {
+			bytes.write(b);
+		}
+		public void writeInt(int i) {
+			bytes.write(i >>> 24);
+			bytes.write(i >>> 16);
+			bytes.write(i >>> 8);
+			bytes.write(i);
+		}
+		public void writeLong(long l) {
+			writeInt((int) (l >>> 32));
+			writeInt((int) l);
+		}
+		public void string(String s) {
+			if (s == null) {
+				writeInt(-1);
+				return;
+			}
+			final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(utf8.length);
+			bytes.write(utf8, 0, utf8.length);
+		}
+		public byte[] bytes() {
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package flodila.tailfile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One source, e.g. one watch or one remote subscription, for many observers. The last lines are
+ * kept in a ring buffer, so that a late or reconnecting observer starts with them, or resumes
+ * where it left off as long as the lines are still there.
+ * <p>
+ * Every state other than CONTINUED and GAP starts a new epoch: line numbers only identify a line
+ * together with the epoch they were read in. Epochs start at a random number, so that they do not
+ * match those of an earlier run.
+ * <p>
+ * Observers are called with the lock of the fanout held and must not block; each one gets its own
+ * copy of the lines.
+ */
+public final class TailFanout implements TailFileObserver {
+	private int capacity;
+	private final ArrayDeque<Line> ring;
+	/** copy on write: an observer may unsubscribe itself while being notified */
+	private final List<TailFileObserver> observers = new CopyOnWriteArrayList<>();
+	private long epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+	/** null until the source reported anything */
+	private FileState lastState = null;
+	private String lastMessage = "";
+	private long nextLineNo = 0L;
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param capacity number of lines to keep
+	 */
+	public TailFanout(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity out of range: "+capacity);
+		}
+		this.capacity = capacity;
+		this.ring = new ArrayDeque<>(Math.min(capacity, 1024));
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @param observer to add
+	 * @param epoch the observer saw lines of last, ignored if fromLineNo is negative
+	 * @param fromLineNo first line the observer wants, negative for all lines kept
+	 */
+	public synchronized void subscribe(TailFileObserver observer, long epoch, long fromLineNo) {
+		observers.add(observer);
+		if (lastState == null) {
+			return; // the first update will reach it
+		}
+		if (fromLineNo >= 0L && epoch == this.epoch) {
+			final List<Line> lines = new ArrayList<>();
+			for (Line line : ring) {
+				if (line.lineno >= fromLineNo) {
+					lines.add(line);
+				}
+			}
+			final boolean complete = fromLineNo >= nextLineNo || (!ring.isEmpty() && ring.peekFirst().lineno <= fromLineNo);
+			notify(observer, complete ? FileState.CONTINUED : FileState.GAP, lines, complete ? "resumed" : "resumed, lines were lost");
+		} else {
+			final FileState state = lastState == FileState.CONTINUED || lastState == FileState.GAP ? FileState.RESET : lastState;
+			notify(observer, state, new ArrayList<>(ring), lastMessage);
+		}
+	}
+
+	/**
+	 * @param capacity number of lines to keep from now on
+	 */
+	public synchronized void capacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity out of range: "+capacity);
+		}
+		this.capacity = capacity;
+		while (ring.size() > capacity) {
+			ring.pollFirst();
+		}
+	}
+
+	/**
+	 * @return number of observers left
+	 */
+	public synchronized int unsubscribe(TailFileObserver observer) {
+		observers.remove(observer);
+		return observers.size();
+	}
+
+	/**
+	 * The epoch of the lines just passed on; call it from within an observer
+	 */
+	public synchronized long epoch() {
+		return epoch;
+	}
+
+	// ----------------------------------------------------
+	// TailFileObserver
+	//
+	@Override
+	public synchronized void update(FileState state, List<Line> newLines, String message) {
+		if (state != FileState.CONTINUED && state != FileState.GAP) {
+			epoch++;
+			ring.clear();
+		}
+		lastState = state;
+		lastMessage = message;
+		if (newLines != null) {
+			for (Line line : newLines) {
+				if (ring.size() >= capacity) {
+					ring.pollFirst();
+				}
+				ring.addLast(line);
+				nextLineNo = line.lineno + 1L;
+			}
+		}
+		for (TailFileObserver observer : observers) {
+			notify(observer, state, newLines != null ? new ArrayList<>(newLines) : null, message);
+		}
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private static void notify(TailFileObserver observer, FileState state, List<Line> lines, String message) {
+		try {
+			observer.update(state, lines, message);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package flodila.tailfile;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Who may open a web socket and subscribe to a tail: caps on subscribers in total and per tail,
+ * and on connections per remote address. Every check is a compare-and-set on one counter.
+ * A limit of null or less than 1 means unlimited.
+ */
+final class TailFileAdmission {
+	private final int maxSubscribers;
+	private final int maxSubscribersPerTail;
+	private final int maxConnectionsPerAddress;
+	private final long maxBytesPerSecond;
+	private final long burstBytes;
+	private final AtomicInteger subscribers = new AtomicInteger();
+	private final Map<String, Integer> tail2subscribers = new ConcurrentHashMap<>();
+	private final Map<String, Integer> address2connections = new ConcurrentHashMap<>();
+
+	// ----------------------------------------------------
+	// life
+	//
+	public TailFileAdmission(Integer maxSubscribers, Integer maxSubscribersPerTail, Integer maxConnectionsPerAddress,
+			Integer maxBytesPerSecond, Integer burstBytes) {
+		this.maxSubscribers = limit(maxSubscribers);
+		this.maxSubscribersPerTail = limit(maxSubscribersPerTail);
+		this.maxConnectionsPerAddress = limit(maxConnectionsPerAddress);
+		this.maxBytesPerSecond = limit(maxBytesPerSecond);
+		this.burstBytes = burstBytes != null && burstBytes.intValue() > 0 ? burstBytes.longValue() : 2L * this.maxBytesPerSecond;
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @return null if admitted, else why not
+	 */
+	public String admitConnection(String address) {
+		if (!increment(address2connections, address, maxConnectionsPerAddress)) {
+			return "Too many connections from "+address;
+		}
+		return null;
+	}
+
+	public void releaseConnection(String address) {
+		decrement(address2connections, address);
+	}
+
+	/**
+	 * @return null if admitted, else why not
+	 */
+	public String admitSubscriber(String tail) {
+		if (!increment(subscribers, maxSubscribers)) {
+			return "Too many subscribers";
+		}
+		if (!increment(tail2subscribers, tail, maxSubscribersPerTail)) {
+			subscribers.decrementAndGet();
+			return "Too many subscribers of "+tail;
+		}
+		return null;
+	}
+
+	public void releaseSubscriber(String tail) {
+		decrement(tail2subscribers, tail);
+		subscribers.decrementAndGet();
+	}
+
+	/**
+	 * @return a rate limit for one session, null if unlimited
+	 */
+	public TokenBucket newTokenBucket() {
+		return maxBytesPerSecond != Integer.MAX_VALUE ? new TokenBucket(maxBytesPerSecond, burstBytes) : null;
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private static int limit(Integer max) {
+		return max != null && max.intValue() > 0 ? max.intValue() : Integer.MAX_VALUE;
+	}
+
+	private static boolean increment(AtomicInteger counter, int max) {
+		while (true) {
+			final int n = counter.get();
+			if (n >= max) {
+				return false;
+			}
+			if (counter.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private static boolean increment(Map<String, Integer> key2count, String key, int max) {
+		final boolean[] admitted = {false};
+		key2count.compute(key, (k, n) -> {
+			if (n != null && n.intValue() >= max) {
+				return n;
+			}
+			admitted[0] = true;
+			return n != null ? n.intValue() + 1 : 1;
+		});
+		return admitted[0];
+	}
+
+	private static void decrement(Map<String, Integer> key2count, String key) {
+		key2count.computeIfPresent(key, (k, n) -> n.intValue() > 1 ? n.intValue() - 1 : null);
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	/**
+	 * Outbound bytes per second of one session; not thread safe, it is used on the watcher thread
+	 */
+	static final class TokenBucket {
+		private final long bytesPerSecond;
+		private final long burstBytes;
+		private long tokens;
+		private long lastRefillNanos = System.nanoTime();
+		public TokenBucket(long bytesPerSecond, long burstBytes) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.burstBytes = Math.max(burstBytes, bytesPerSecond);
+			this.tokens = this.burstBytes;
+		}
+		/**
+		 * @return true and takes them if there are enough tokens for bytes
+		 */
+		public boolean tryTake(long bytes) {
+			refill();
+			if (tokens < bytes && tokens < burstBytes) {
+				return false; // a frame bigger than the burst passes on a full bucket
+			}
+			tokens -= bytes;
+			return true;
+		}
+		public boolean hasTokens() {
+			refill();
+			return tokens > 0L;
+		}
+		/**
+		 * Takes them anyway, e.g. for a frame that must not be dropped; the debt is paid off first
+		 */
+		public void take(long bytes) {
+			refill();
+			tokens -= bytes;
+		}
+		private void refill() {
+			final long now = System.nanoTime();
+			final long elapsed = now - lastRefillNanos;
+			final long add = elapsed / 1000L * bytesPerSecond / 1000000L;
+			if (add > 0L) {
+				tokens = Math.min(burstBytes, tokens + add);
+				lastRefillNanos = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package flodila.tailfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Read positions of watched files, kept in a small local properties file so that a restart resumes
+ * instead of reading again; used by the watcher thread only
+ */
+final class TailFileCheckpoints {
+	static final long FLUSH_INTERVAL_MILLIS = 1000L;
+	private static final String FILE_KEY = ".fileKey";
+	private static final String POS = ".pos";
+	private static final String LINE_NO = ".lineNo";
+	private static final String WAS_CR = ".wasCR";
+	private static final String DROP_PARTIAL_LINE = ".dropPartialLine";
+	private static final String PARTIAL_LINE = ".partialLine";
+	private static final String PARTIAL_OFFSET = ".partialOffset";
+	private static final String PARTIAL_OMITTED = ".partialOmitted";
+	private final Path file;
+	private final Map<String, Checkpoint> key2checkpoint = new HashMap<>();
+	private boolean dirty = false;
+	private long lastFlushEmil = 0L;
+
+	// ----------------------------------------------------
+	// life
+	//
+	public TailFileCheckpoints(File file) {
+		this.file = file.toPath().toAbsolutePath();
+		load();
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	public Checkpoint get(String key) {
+		return key2checkpoint.get(key);
+	}
+
+	public void put(String key, Checkpoint checkpoint) {
+		key2checkpoint.put(key, checkpoint);
+		dirty = true;
+	}
+
+	public void maybeFlush(long nowEmil) {
+		if (dirty && nowEmil - lastFlushEmil >= FLUSH_INTERVAL_MILLIS) {
+			flush();
+			lastFlushEmil = nowEmil;
+		}
+	}
+
+	public void flush() {
+		if (!dirty) {
+			return;
+		}
+		final Properties props = new Properties();
+		for (Map.Entry<String, Checkpoint> entry : key2checkpoint.entrySet()) {
+			final String key = entry.getKey();
+			final Checkpoint cp = entry.getValue();
+			props.setProperty(key + FILE_KEY, cp.fileKey);
+			props.setProperty(key + POS, Long.toString(cp.pos));
+			props.setProperty(key + LINE_NO, Long.toString(cp.lineNo));
+			props.setProperty(key + WAS_CR, Boolean.toString(cp.wasCR));
+			props.setProperty(key + DROP_PARTIAL_LINE, Boolean.toString(cp.dropPartialLine));
+			props.setProperty(key + PARTIAL_LINE, cp.partialLine);
+			props.setProperty(key + PARTIAL_OFFSET, Long.toString(cp.partialOffset));
+			props.setProperty(key + PARTIAL_OMITTED, Long.toString(cp.partialOmitted));
+		}
+		try {
+			final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				props.store(out, "tail file checkpoints");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void load() {
+		if (!Files.exists(file)) {
+			return;
+		}
+		final Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			props.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for (String name : props.stringPropertyNames()) {
+			if (!name.endsWith(POS)) {
+				continue;
+			}
+			final String key = name.substring(0, name.length() - POS.length());
+			try {
+				key2checkpoint.put(key, new Checkpoint(
+						props.getProperty(key + FILE_KEY, ""),
+						Long.parseLong(props.getProperty(key + POS)),
+						Long.parseLong(props.getProperty(key + LINE_NO, "0")),
+						Boolean.parseBoolean(props.getProperty(key + WAS_CR)),
+						Boolean.parseBoolean(props.getProperty(key + DROP_PARTIAL_LINE)),
+						props.getProperty(key + PARTIAL_LINE, ""),
+						Long.parseLong(props.getProperty(key + PARTIAL_OFFSET, "0")),
+						Long.parseLong(props.getProperty(key + PARTIAL_OMITTED, "0"))));
+			} catch (NumberFormatException e) {
+				System.out.println("Ignoring broken checkpoint "+key+" in "+file+": "+e);
+			}
+		}
+		System.out.println("Loaded "+key2checkpoint.size()+" checkpoints from "+file);
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	static final class Checkpoint {
+		/** identity of the file, e.g. device and inode */
+		public final String fileKey;
+		public final long pos;
+		public final long lineNo;
+		public final boolean wasCR;
+		public final boolean dropPartialLine;
+		/** decoded but not yet terminated rest */
+		public final String partialLine;
+		/** characters of the partial line already delivered as fragments, or cut off */
+		public final long partialOffset;
+		public final long partialOmitted;
+		public Checkpoint(String fileKey, long pos, long lineNo, boolean wasCR, boolean dropPartialLine, String partialLine, long partialOffset, long partialOmitted) {
+			this.fileKey = fileKey;
+			this.pos = pos;
+			this.lineNo = lineNo;
+			this.wasCR = wasCR;
+			this.dropPartialLine = dropPartialLine;
+			this.partialLine = partialLine;
+			this.partialOffset = partialOffset;
+			this.partialOmitted = partialOmitted;
+		}
+	}
+}
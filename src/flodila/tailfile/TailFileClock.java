@@ -0,0 +1,11 @@
+package flodila.tailfile;
+
+/**
+ * The wall clock the watcher thread decides by (minTimeGapMillis, checkpoint flushes);
+ * a virtual one makes its timing reproducible
+ */
+interface TailFileClock {
+	TailFileClock SYSTEM = System::currentTimeMillis;
+
+	long currentTimeMillis();
+}
@@ -0,0 +1,55 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the watcher thread learns about creations, deletions and modifications in the directories
+ * of its files: a {@link WatchService} of the default file system, or a simulation driven by the
+ * writer of the files
+ */
+interface TailFileEventSource {
+
+	/**
+	 * @return the key signalled for changes of entries of dir; its {@link WatchKey#watchable()} is dir
+	 */
+	WatchKey register(Path dir) throws IOException;
+
+	/**
+	 * @return the next signalled key, null if none was within timeout
+	 */
+	WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+	void close() throws IOException;
+
+	static TailFileEventSource watchService() {
+		final WatchService watchService;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return new TailFileEventSource() {
+			@Override
+			public WatchKey register(Path dir) throws IOException {
+				return dir.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			@Override
+			public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+				return watchService.poll(timeout, unit);
+			}
+			@Override
+			public void close() throws IOException {
+				watchService.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,243 @@
+package flodila.tailfile;
+
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the lines of several watched files into one stream ordered by the timestamp each line starts with.
+ * <p>
+ * It is a bounded k-way merge: a line is passed on once every other source either has a line queued,
+ * or has already been seen at a later timestamp, or once it waited for the reorder window.
+ * Lines without a timestamp (e.g. stack traces) stick to the line before them.
+ * Memory stays constant: every source queues at most maxQueuedLines.
+ * <p>
+ * Not thread safe: feed it from the watcher thread, i.e. its source observers and {@link #tick()}
+ * as a tick listener of the same {@link TailFileWatcher}, whose clock times the reorder window.
+ */
+public final class TailFileMerger {
+	private final TailFileObserver downstream;
+	private final TailFileClock clock;
+	private final long reorderWindowMillis;
+	private final int maxQueuedLines;
+	private final List<Source> sources = new ArrayList<>();
+	private final PriorityQueue<Source> heads = new PriorityQueue<>((s1, s2) -> {
+		final QueuedLine l1 = s1.queue.peekFirst();
+		final QueuedLine l2 = s2.queue.peekFirst();
+		final int cmp = Long.compare(l1.timestampMillis, l2.timestampMillis);
+		return cmp != 0 ? cmp : Integer.compare(s1.index, s2.index);
+	});
+	private long mergedLineNo = 0L;
+	private boolean resetSent = false;
+	/** a source restarted or skipped lines since the last frame sent */
+	private boolean gapPending = false;
+	private String message = "merging";
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param tailFileWatcher that watches the sources
+	 * @param downstream to send the merged lines to; {@link TailFileObserver.Line#source} tells where they come from
+	 * @param reorderWindowMillis how long a line may wait for lines of other sources with an earlier timestamp
+	 * @param maxQueuedLines per source
+	 */
+	public TailFileMerger(TailFileWatcher tailFileWatcher, TailFileObserver downstream, long reorderWindowMillis, int maxQueuedLines) {
+		this.downstream = downstream;
+		this.clock = tailFileWatcher.clock();
+		this.reorderWindowMillis = reorderWindowMillis;
+		this.maxQueuedLines = maxQueuedLines;
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @param name tag of the lines of this source
+	 * @param timestampPattern {@link DateTimeFormatter} pattern of the start of a line
+	 * @param zone to interpret timestamps without offset in, null for the system default
+	 * @return the observer to watch the source with
+	 */
+	public TailFileObserver newSource(String name, String timestampPattern, ZoneId zone) {
+		final Source source = new Source(sources.size(), name, new TimestampPrefix(timestampPattern, zone != null ? zone : ZoneId.systemDefault()));
+		sources.add(source);
+		return source;
+	}
+
+	/**
+	 * Pass on what waited long enough
+	 */
+	public void tick() {
+		final List<TailFileObserver.Line> lines = new ArrayList<>();
+		drain(clock.currentTimeMillis(), lines);
+		send(lines);
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private void drain(long nowEmil, List<TailFileObserver.Line> lines) {
+		while (!heads.isEmpty()) {
+			final Source head = heads.peek();
+			final QueuedLine first = head.queue.peekFirst();
+			if (!mayEmit(head, first, nowEmil)) {
+				break;
+			}
+			heads.poll();
+			head.queue.pollFirst();
+			lines.add(new TailFileObserver.Line(mergedLineNo++, first.line.content, head.name, first.line.matches, first.line.offset, first.line.omitted));
+			if (!head.queue.isEmpty()) {
+				heads.add(head);
+			}
+		}
+	}
+
+	private void send(List<TailFileObserver.Line> lines) {
+		if (!lines.isEmpty() || !resetSent || gapPending) {
+			sendFrame(lines);
+		}
+	}
+
+	private void sendFrame(List<TailFileObserver.Line> lines) {
+		final TailFileObserver.FileState state = !resetSent ? TailFileObserver.FileState.RESET
+				: gapPending ? TailFileObserver.FileState.GAP : TailFileObserver.FileState.CONTINUED;
+		downstream.update(state, lines, message);
+		resetSent = true;
+		gapPending = false;
+	}
+
+	private boolean mayEmit(Source head, QueuedLine first, long nowEmil) {
+		if (first.arrivalEmil <= nowEmil - reorderWindowMillis) {
+			return true;
+		}
+		boolean mayEmit = true;
+		for (Source other : sources) {
+			if (other.queue.size() >= maxQueuedLines) {
+				return true; // make room
+			} else if (other != head && other.queue.isEmpty() && other.lastTimestampMillis < first.timestampMillis) {
+				mayEmit = false; // other might still come up with something earlier
+			}
+		}
+		return mayEmit;
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private final class Source implements TailFileObserver {
+		public final int index;
+		public final String name;
+		private final TimestampPrefix timestampPrefix;
+		public final ArrayDeque<QueuedLine> queue = new ArrayDeque<>();
+		public long lastTimestampMillis = Long.MIN_VALUE;
+		private boolean updated = false;
+		public Source(int index, String name, TimestampPrefix timestampPrefix) {
+			this.index = index;
+			this.name = name;
+			this.timestampPrefix = timestampPrefix;
+		}
+		@Override
+		public void update(FileState state, List<Line> newLines, String message) {
+			TailFileMerger.this.message = name + ": " + message;
+			if (updated && (state == FileState.RESET || state == FileState.GAP)) {
+				gapPending = true; // restarted or skipped, the merged stream misses lines of this source
+			}
+			updated = true;
+			if (newLines == null || newLines.isEmpty()) {
+				if (state != FileState.CONTINUED) {
+					sendFrame(Collections.emptyList());
+				}
+				return;
+			}
+			final long nowEmil = clock.currentTimeMillis();
+			final List<Line> lines = new ArrayList<>();
+			for (Line line : newLines) {
+				final long ts = timestampPrefix.parseMillis(line.content);
+				if (ts != Long.MIN_VALUE) {
+					lastTimestampMillis = Math.max(lastTimestampMillis, ts); // keep the order within a file
+				}
+				queue.addLast(new QueuedLine(lastTimestampMillis, nowEmil, line));
+				if (queue.size() == 1) {
+					heads.add(this); // the heap orders by the first line of a queue only
+				} else if (queue.size() >= maxQueuedLines) {
+					drain(nowEmil, lines);
+				}
+			}
+			drain(nowEmil, lines);
+			send(lines);
+		}
+	}
+
+	private static final class QueuedLine {
+		public final long timestampMillis;
+		public final long arrivalEmil;
+		public final TailFileObserver.Line line;
+		public QueuedLine(long timestampMillis, long arrivalEmil, TailFileObserver.Line line) {
+			this.timestampMillis = timestampMillis;
+			this.arrivalEmil = arrivalEmil;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Parses the timestamp at the start of a line without throwing for lines that obviously have none
+	 */
+	static final class TimestampPrefix {
+		private final DateTimeFormatter formatter;
+		private final ZoneId zone;
+		private final String shape;
+		public TimestampPrefix(String pattern, ZoneId zone) {
+			this.formatter = DateTimeFormatter.ofPattern(pattern);
+			this.zone = zone;
+			this.shape = formatter.format(ZonedDateTime.of(2000, 12, 31, 23, 59, 58, 987654321, zone));
+			if (shape.isEmpty()) {
+				throw new IllegalArgumentException("Empty timestamp pattern");
+			}
+		}
+		/**
+		 * @return epoch milliseconds or Long.MIN_VALUE if the line does not start with a timestamp
+		 */
+		public long parseMillis(String line) {
+			if (line.isEmpty() || !sameKind(line.charAt(0), shape.charAt(0))) {
+				return Long.MIN_VALUE;
+			}
+			try {
+				final TemporalAccessor parsed = formatter.parse(line, new ParsePosition(0));
+				if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+					return Instant.from(parsed).toEpochMilli();
+				}
+				final LocalTime time = parsed.query(TemporalQueries.localTime());
+				final LocalDate date = parsed.query(TemporalQueries.localDate());
+				if (time == null) {
+					return Long.MIN_VALUE;
+				}
+				return LocalDateTime.of(date != null ? date : LocalDate.now(zone), time).atZone(zone).toInstant().toEpochMilli();
+			} catch (DateTimeException | IndexOutOfBoundsException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+		private static boolean sameKind(char c1, char c2) {
+			if (Character.isDigit(c2)) {
+				return Character.isDigit(c1);
+			} else if (Character.isLetter(c2)) {
+				return Character.isLetter(c1);
+			} else {
+				return c1 == c2;
+			}
+		}
+	}
+}
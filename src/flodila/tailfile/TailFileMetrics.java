@@ -0,0 +1,200 @@
+package flodila.tailfile;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What the watcher and its consumers expose via JMX in the domain {@value #DOMAIN}
+ */
+public final class TailFileMetrics {
+	public static final String DOMAIN = "flodila.tailfile";
+
+	private TailFileMetrics() {
+	}
+
+	// ----------------------------------------------------
+	// MXBeans
+	//
+	/**
+	 * One per {@link TailFileWatcher}
+	 */
+	public interface WatcherMXBean {
+		int getWatchedFileCount();
+		int getOpenFileHandles();
+		int getPendingObserverFodderCount();
+		/** number of watcher loop iterations that had anything to do */
+		long getLoopIterationCount();
+		long getLoopIterationP50Micros();
+		long getLoopIterationP90Micros();
+		long getLoopIterationP99Micros();
+		long getLoopIterationMaxMicros();
+		/** counts per bucket; bucket i holds iterations shorter than 2^i microseconds */
+		long[] getLoopIterationHistogram();
+	}
+
+	/**
+	 * One per watch handle
+	 */
+	public interface WatchedFileMXBean {
+		String getPath();
+		long getLastPos();
+		/** file size minus the position read up to */
+		long getLag();
+		long getBytesRead();
+		long getLinesRead();
+		/** over the last 5 seconds with reads; reading it changes nothing */
+		double getLinesPerSecond();
+		/** time spent decoding and splitting into lines */
+		long getDecodeNanos();
+		/** size of the most recent memory mapping */
+		long getMappedBytes();
+		int getOpenFileHandles();
+	}
+
+	/**
+	 * One per web socket session
+	 */
+	public interface SessionMXBean {
+		String getTail();
+		long getFramesSent();
+		long getBytesSent();
+		int getInFlightSends();
+		/** lines waiting to be sent again after a failed send */
+		int getBacklogLines();
+		long getDroppedLines();
+	}
+
+	// ----------------------------------------------------
+	// registration
+	//
+	/**
+	 * @return name to unregister with, null if the registration failed
+	 */
+	static ObjectName register(Object mbean, String type, String... keyValuePairs) {
+		try {
+			final Hashtable<String, String> props = new Hashtable<>();
+			props.put("type", type);
+			for (int i=0; i+1<keyValuePairs.length; i+=2) {
+				props.put(keyValuePairs[i], quoteIfNeeded(keyValuePairs[i+1]));
+			}
+			final ObjectName objectName = new ObjectName(DOMAIN, props);
+			final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			if (mbs.isRegistered(objectName)) {
+				mbs.unregisterMBean(objectName);
+			}
+			mbs.registerMBean(mbean, objectName);
+			return objectName;
+		} catch (JMException | RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	static void unregister(ObjectName objectName) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String quoteIfNeeded(String value) {
+		for (int i=0; i<value.length(); i++) {
+			switch (value.charAt(i)) {
+			case ',':
+			case '=':
+			case ':':
+			case '\"':
+			case '*':
+			case '?':
+			case '\n':
+				return ObjectName.quote(value);
+			default:
+				break;
+			}
+		}
+		return value;
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	/**
+	 * Lock free histogram with power of two microsecond buckets
+	 */
+	static final class Histogram {
+		private static final int BUCKETS = 32;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong maxMicros = new AtomicLong();
+		public void recordNanos(long nanos) {
+			final long micros = Math.max(0L, nanos / 1000L);
+			final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			maxMicros.accumulateAndGet(micros, Math::max);
+		}
+		public long count() {
+			return count.get();
+		}
+		public long maxMicros() {
+			return maxMicros.get();
+		}
+		/**
+		 * @return upper bound of the bucket the percentile falls into
+		 */
+		public long percentileMicros(double percentile) {
+			final long total = count.get();
+			if (total == 0L) {
+				return 0L;
+			}
+			final long rank = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0L;
+			for (int i=0; i<BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(1L << i, maxMicros.get());
+				}
+			}
+			return maxMicros.get();
+		}
+		public long[] snapshot() {
+			final long[] snapshot = new long[BUCKETS];
+			for (int i=0; i<BUCKETS; i++) {
+				snapshot[i] = buckets.get(i);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * @return number of bytes s takes in UTF-8
+	 */
+	static long utf8Length(final String s) {
+		final int len = s.length();
+		long bytes = len;
+		for (int i=0; i<len; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes += 1;
+				} else if (Character.isHighSurrogate(c)) {
+					bytes += 2; // together with the low surrogate 4 bytes
+					i++;
+				} else {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+}
@@ -1,5 +1,6 @@
 package flodila.tailfile;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -13,6 +14,13 @@ public interface TailFileObserver {
 	 */
 	void update(FileState state, List<Line> newLines, String message);
 
+	/**
+	 * @return false to make the watcher hold back reading the file; it asks again in every round
+	 */
+	default boolean hasDemand() {
+		return true;
+	}
+
 	// ----------------------------------------------------
 	// type
 	//
@@ -20,11 +28,15 @@ public interface TailFileObserver {
 		DOES_NOT_EXIST,
 		RESET,
 		CONTINUED,
+		/** continued after skipping lines; the line numbers do account for the skipped ones */
+		GAP,
 		ERROR;
 
 		public FileState and(FileState other) {
 			if (this == CONTINUED && other == CONTINUED) {
 				return CONTINUED;
+			} else if ((this == CONTINUED || this == GAP) && (other == CONTINUED || other == GAP)) {
+				return GAP;
 			} else {
 				return ERROR;
 			}
@@ -32,11 +44,49 @@ public interface TailFileObserver {
 	}
 
 	public static final class Line {
+		/**
+		 * from 0 at the start of the file for ASCII compatible charsets, otherwise from the first line read; of a merged stream,
+		 * in the order merged. A tail of a file not indexed yet counts from its first line until a RESET sends it anew.
+		 */
 		public final long lineno;
 		public final String content;
+		/** name of the file it comes from if lines of several files are mixed, otherwise null */
+		public final String source;
+		/** highlights found by {@link TailLineRules}, never null */
+		public final List<Match> matches;
+		/** characters of the same line before the content, more than 0 for a continuation fragment of a long line */
+		public final long offset;
+		/** characters of the line cut off after the content and not delivered at all */
+		public final long omitted;
 		public Line(long lineno, String content) {
+			this(lineno, content, null);
+		}
+		public Line(long lineno, String content, String source) {
+			this(lineno, content, source, Collections.emptyList());
+		}
+		public Line(long lineno, String content, String source, List<Match> matches) {
+			this(lineno, content, source, matches, 0L, 0L);
+		}
+		public Line(long lineno, String content, String source, List<Match> matches, long offset, long omitted) {
 			this.lineno = lineno;
 			this.content = content;
+			this.source = source;
+			this.matches = matches;
+			this.offset = offset;
+			this.omitted = omitted;
+		}
+	}
+
+	public static final class Match {
+		/** of the rule that matched */
+		public final String tag;
+		/** char index into the content */
+		public final int start;
+		public final int end;
+		public Match(String tag, int start, int end) {
+			this.tag = tag;
+			this.start = start;
+			this.end = end;
 		}
 	}
 }
@@ -0,0 +1,195 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pull based view of a watched file: the watcher reads on only while a subscriber has demand,
+ * and then at most one window of maxMemMapKiB ahead. Every subscriber gets a watch of its own.
+ * A tail never completes: a RESET, GAP or DOES_NOT_EXIST comes as an {@link Item} without a line
+ * before the lines that follow it, an ERROR ends the subscription with onError.
+ */
+public final class TailFilePublisher implements Flow.Publisher<TailFilePublisher.Item> {
+	private final TailFileWatcher.WatchBuilder watch;
+	private final Executor executor;
+
+	// ----------------------------------------------------
+	// life
+	//
+	TailFilePublisher(TailFileWatcher.WatchBuilder watch, Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor is null");
+		}
+		this.watch = watch;
+		this.executor = executor;
+	}
+
+	// ----------------------------------------------------
+	// Flow.Publisher
+	//
+	@Override
+	public void subscribe(Flow.Subscriber<? super Item> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber is null");
+		}
+		final TailSubscription subscription = new TailSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		subscription.start();
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	/**
+	 * A line, or a change of state of the file with its message
+	 */
+	public static final class Item {
+		/** CONTINUED for a line */
+		public final TailFileObserver.FileState state;
+		/** null for a line */
+		public final String message;
+		/** null for a change of state */
+		public final TailFileObserver.Line line;
+		Item(TailFileObserver.FileState state, String message, TailFileObserver.Line line) {
+			this.state = state;
+			this.message = message;
+			this.line = line;
+		}
+	}
+
+	private final class TailSubscription implements Flow.Subscription, TailFileObserver {
+		private final Flow.Subscriber<? super Item> subscriber;
+		private final Queue<Item> buffer = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger buffered = new AtomicInteger();
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		/** to signal once the items before it are delivered, null for none */
+		private volatile Throwable error = null;
+		/** signal the error without delivering the items before it */
+		private volatile boolean errorFirst = false;
+		private volatile Long handle = null;
+		public TailSubscription(Flow.Subscriber<? super Item> subscriber) {
+			this.subscriber = subscriber;
+		}
+		public void start() {
+			if (!cancelled && error == null) {
+				handle = watch.observe(this);
+				if (cancelled || error != null) {
+					watch.unwatch(handle); // cancelled or failed while we were subscribing
+				}
+			}
+		}
+
+		// Flow.Subscription
+		@Override
+		public void request(long n) {
+			if (n <= 0L) {
+				errorFirst = true; // see rule 3.9
+				fail(new IllegalArgumentException("non-positive request: "+n));
+				return;
+			}
+			demand.accumulateAndGet(n, (current, add) -> current + add < 0L ? Long.MAX_VALUE : current + add);
+			scheduleDrain();
+		}
+		@Override
+		public void cancel() {
+			if (!cancelled) {
+				cancelled = true;
+				final Long h = handle;
+				if (h != null) {
+					watch.unwatch(h);
+				}
+				buffer.clear();
+			}
+		}
+
+		// TailFileObserver
+		@Override
+		public void update(FileState state, List<Line> newLines, String message) {
+			if (cancelled || error != null) {
+				return;
+			}
+			if (state == FileState.ERROR) {
+				fail(new IOException(message)); // after the lines before it
+				return;
+			}
+			if (state != FileState.CONTINUED) {
+				buffer.add(new Item(state, message, null));
+				buffered.incrementAndGet();
+			}
+			if (newLines != null) {
+				for (Line line : newLines) {
+					buffer.add(new Item(FileState.CONTINUED, null, line));
+				}
+				buffered.addAndGet(newLines.size());
+			}
+			scheduleDrain();
+		}
+		@Override
+		public boolean hasDemand() {
+			return !cancelled && error == null && demand.get() > buffered.get();
+		}
+
+		// extracts
+		/**
+		 * Stops the watch and has the drain signal e, so it never overlaps an onNext
+		 */
+		private void fail(Throwable e) {
+			if (error == null) {
+				error = e;
+				final Long h = handle;
+				if (h != null) {
+					watch.unwatch(h);
+				}
+				scheduleDrain();
+			}
+		}
+		private void scheduleDrain() {
+			if (wip.getAndIncrement() == 0) {
+				try {
+					executor.execute(this::drain);
+				} catch (RuntimeException e) {
+					wip.set(0);
+					cancel();
+					subscriber.onError(e);
+				}
+			}
+		}
+		private void drain() {
+			int missed = 1;
+			do {
+				while (!cancelled && !errorFirst && demand.get() > 0L) {
+					final Item item = buffer.poll();
+					if (item == null) {
+						break;
+					}
+					buffered.decrementAndGet();
+					if (demand.get() != Long.MAX_VALUE) {
+						demand.decrementAndGet();
+					}
+					try {
+						subscriber.onNext(item);
+					} catch (RuntimeException e) {
+						cancel();
+						subscriber.onError(e);
+						return;
+					}
+				}
+				final Throwable e = error;
+				if (e != null && !cancelled && (errorFirst || buffer.isEmpty())) {
+					cancel();
+					subscriber.onError(e);
+					return;
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
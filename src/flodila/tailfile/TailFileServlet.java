@@ -1,17 +1,52 @@
 package flodila.tailfile;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -35,8 +70,22 @@ import javax.websocket.server.ServerEndpointConfig;
  */
 public final class TailFileServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+	private static final String DEFAULT_TIMESTAMP_PATTERN = "yyyy-MM-dd HH:mm:ss";
+	private static final long DEFAULT_REORDER_WINDOW_MILLIS = 500L;
+	private static final long DEFAULT_ALERT_INTERVAL_MILLIS = 60000L;
+	private static final int DEFAULT_INITIAL_LINES = 128;
+	// request attributes of Tomcat's sendfile
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	private static final ViewerAsset JS_ASSET = ViewerAsset.load("tail.js", "text/javascript; charset=utf-8");
+	private static final ViewerAsset CSS_ASSET = ViewerAsset.load("tail.css", "text/css; charset=utf-8");
+	/** part of the version of every page, which links them */
+	private static final String ASSET_VERSIONS = JS_ASSET.version + CSS_ASSET.version;
 	private String servletName;
-	private int maxLines;
+	/** whether init registered a tail under the servlet name */
+	private boolean ownTail = false;
 
 	// ----------------------------------------------------
 	// HttpServlet
@@ -45,193 +94,395 @@ public final class TailFileServlet extends HttpServlet {
 	public void init(ServletConfig config) throws ServletException {
 		super.init(config);
 		this.servletName = config.getServletName();
-		
-		Integer maxLineBufferCount = servletIntegerInitParam(config, "maxLineBufferCount");
-		if (maxLineBufferCount == null) {
-			maxLineBufferCount = TailFileWatcher.DEFAULT_MAX_LINES;
-		}
-		this.maxLines = maxLineBufferCount.intValue();
-		
-		TailFileWatcherListener.tailFileServletName2FileName(config.getServletContext()).put(servletName,
-				new TailFileConfig(
-						config.getInitParameter("path"),
-						config.getInitParameter("charset"),
-						servletIntegerInitParam(config, "maxMemMapKiB"),
-						maxLineBufferCount,
-						servletIntegerInitParam(config, "minTimeGapMillis")));
+		// without a file of its own it serves the tails named by its path info, mapped to e.g. /tail/*
+		if (config.getInitParameter("path") != null || config.getInitParameter("sources") != null || config.getInitParameter("agent") != null) {
+			final TailRegistry registry = TailFileWatcherListener.tailRegistry(config.getServletContext());
+			synchronized (registry) { // its agent connection is not closed in between
+				registry.put(Tail.of(config, Tail.ORIGIN_WEB_XML));
+			}
+			this.ownTail = true;
+		}
+	}
+
+	@Override
+	public void destroy() {
+		final TailRegistry registry = TailFileWatcherListener.tailRegistry(getServletContext());
+		if (registry != null && ownTail) {
+			registry.remove(servletName);
+		}
+		ownTail = false;
+		super.destroy();
 	}
 
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
-		TailFileConfig tailFileConfig = TailFileWatcherListener.tailFileServletName2FileName(getServletContext()).get(servletName);
-		res.setContentType("text/html");
-		res.setCharacterEncoding(StandardCharsets.UTF_8.name());
-		final PrintWriter w = res.getWriter();
+		if (req.getParameter("asset") != null) {
+			doGetAsset(req, res);
+			return;
+		}
+		final String pathInfo = req.getPathInfo();
+		final String name = pathInfo != null && pathInfo.length() > 1 ? pathInfo.substring(1) : servletName;
+		final Tail tail = TailFileWatcherListener.tailRegistry(getServletContext()).get(name);
+		if (tail == null) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND, "No such tail");
+			return;
+		}
+		final TailFileConfig tailFileConfig = tail.config;
+		final String self = req.getContextPath() + req.getServletPath() + (pathInfo != null && pathInfo.length() > 1 ? "/" + escUrl(name) : "");
+		if (req.getParameter("archives") != null || req.getParameter("archive") != null) {
+			doGetArchive(req, res, tailFileConfig);
+			return;
+		}
+		if (req.getParameter("download") != null) {
+			doGetDownload(req, res, tailFileConfig);
+			return;
+		}
+		final InitialFrame initial = initialFrame(req, tail);
+		final boolean gzip = acceptsGzip(req);
+		final String etag = initial != null ? "\"" + initial.version + "-" + Integer.toHexString(Objects.hashCode(req.getQueryString())) + (gzip ? "-gz" : "") + "\"" : null;
+		res.setHeader("Cache-Control", "no-cache"); // the tail moves on: revalidate, which is cheap as long as it does not
+		if (etag != null) {
+			res.setHeader("ETag", etag);
+			if (etag.equals(req.getHeader("If-None-Match"))) {
+				res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		}
+		final String assetPath = self + "?asset=";
+		final StringWriter html = new StringWriter(8192);
+		final PrintWriter w = new PrintWriter(html);
 		w.println("<!DOCTYPE html>");
 		w.println("<html>");
 		{
 			w.println("<head>");
 			{
-				w.println("<style>");
-				{
-					w.println("* { font-family: monospace; }");
-					w.println("#header { position: absolute; height: 130px; background-color: #F8F8F8; top: 0; left: 0; right: 0; padding: 0 10px; border-bottom: 1px solid #E0E0E0; }");
-					w.println("#lines { position: absolute; top: 131px; bottom: 0; left: 0; right: 0; padding: 0 10px; overflow-y: scroll; }");
-					w.println("#lines div { margin-left: 100px; text-indent: -100px; white-space: pre-wrap; }");
-					w.println("#togglemode { position: absolute; width: 50px; height: 50px; bottom: 10px; right: 10px; font-size: 20px; font-weight: bold; }");
-					w.println("#mode { color: blue; }");
-				}
-				w.println("</style>");
-				w.println("<script>");
-				{
-					w.println("(function(){");
-					w.println("  var LINEBUFF_POWER = "+maxLines+";");
-					w.println("  var TAIL_DISPLAY_POWER = 128;");
-					w.println("  var MODE_TAIL_F = 'tail -f';");
-					w.println("  var MODE_TAIL_N = 'tail -n '+LINEBUFF_POWER;");
-					w.println("  var mode = MODE_TAIL_F;");
-					w.println("  var linebuff = [];");
-					w.println("  var notContinuedFlag;");
-					w.println("  var socke = new WebSocket('ws://'+window.location.hostname+':'+window.location.port+'"
-							+ req.getContextPath( ) + "/tailsock/" + escUrl(servletName) + "');");
-					w.println("  socke.onerror = function(error) {");
-					w.println("    console.error('Web Socket error', error);");
-					w.println("    var messageEl = document.getElementById('message');");
-					w.println("    empty(messageEl);");
-					w.println("    messageEl.appendChild(document.createTextNode('Web Socket error: '+error));");
-					w.println("  };");
-					w.println("  socke.onmessage = function(event) {");
-					w.println("    if (event.data) {");
-					w.println("      var msg = JSON.parse(event.data);");
-					w.println("      if (msg.state !== 'CONTINUED') {");
-					w.println("        cleanLinebuff();");
-					w.println("        notContinuedFlag = true;");
-					w.println("      }");
-					w.println("      var messageEl = document.getElementById('message');");
-					w.println("      empty(messageEl);");
-					w.println("      messageEl.appendChild(document.createTextNode(msg.message));");
-					w.println("      linebuffAdd(msg.lines);");
-					w.println("      if (mode === MODE_TAIL_F) {");
-					w.println("        displayLinebuff(TAIL_DISPLAY_POWER);");
-					w.println("      }");
-					w.println("    }");
-					w.println("  };");
-					w.println("  function cleanLinebuff() {");
-					w.println("    linebuff = [];");
-					w.println("  }");
-					w.println("  function linebuffAdd(lines) {");
-					w.println("    if (!lines) return;");
-					w.println("    linebuff = linebuff.concat(lines);");
-					w.println("    linebuff.sort(function(l1, l2) {");
-					w.println("      if (!l1 && !l2) return 0;");
-					w.println("      if (!l1) return -1;");
-					w.println("      if (!l2) return 1;");
-					w.println("      if (!l1.n && !l2.n) return 0;");
-					w.println("      if (!l1.n) return -1;");
-					w.println("      if (!l2.n) return 1;");
-					w.println("      return l1.n - l2.n;");
-					w.println("    });");
-					w.println("    while (linebuff.length > LINEBUFF_POWER) linebuff.shift();");
-					w.println("  }");
-					w.println("  function displayLinebuff(n) {");
-					w.println("    var currNo, toBeRemovedEl;");
-					w.println("    var bufflen = linebuff.length;");
-					w.println("    var displayPower = (!n || n > bufflen) ? bufflen : n;");
-					w.println("    var start = bufflen - displayPower;");
-					w.println("    var linesEl = document.getElementById('lines');");
-					w.println("    if (notContinuedFlag) {");
-					w.println("      empty(linesEl);");
-					w.println("      notContinuedFlag = false;");
-					w.println("    }");
-					w.println("    var currLineEl = linesEl.firstChild;"); // null means end reached
-					w.println("    for (var i=start; i<bufflen; i++) {");
-					w.println("      var buffLine = linebuff[i];");
-					w.println("      var buffNo = buffLine.n;");
-					w.println("      while (typeof (currNo = elIdNo(currLineEl)) !== 'undefined' && currNo < buffNo) {");
-					w.println("        toBeRemovedEl = currLineEl;");
-					w.println("        currLineEl = currLineEl.nextSibling;");
-					w.println("        linesEl.removeChild(toBeRemovedEl);");
-					w.println("      }");
-					w.println("      if (!currLineEl) {");
-					w.println("        linesEl.appendChild(newLineEl(buffLine));");
-					w.println("      } else if (currNo > buffNo) {");
-					w.println("        linesEl.insertBefore(newLineEl(buffLine), currLineEl);");
-					w.println("      } else {");
-					w.println("        currLineEl = currLineEl.nextSibling;");
-					w.println("      }");
-					w.println("    }");
-					w.println("    while (currLineEl) {");
-					w.println("      toBeRemovedEl = currLineEl;");
-					w.println("      currLineEl = currLineEl.nextSibling;");
-					w.println("      linesEl.removeChild(toBeRemovedEl);");
-					w.println("    }");
-					w.println("    linesEl.scrollTo(0, linesEl.scrollHeight);");
-					w.println("    function elIdNo(el) {");
-					w.println("      if (!el) return undefined;");
-					w.println("      return parseInt(el.getAttribute('id').substring(3), 10);");
-					w.println("    }");
-					w.println("    function newLineEl(buffLine) {");
-					w.println("      var lineDivEl = document.createElement('div');");
-					w.println("      lineDivEl.setAttribute('id', 'ld_'+buffLine.n);");
-					w.println("      if (buffLine.t) {");
-					w.println("        lineDivEl.appendChild(document.createTextNode(buffLine.t));");
-					w.println("      } else {");
-					w.println("        lineDivEl.appendChild(document.createElement('br'));");
-					w.println("      }");
-					w.println("      return lineDivEl;");
-					w.println("    }");
-					w.println("  }");
-					w.println("  function empty(el) {");
-					w.println("    var i;");
-					w.println("    var children = el.childNodes;");
-					w.println("    var toBeRemoved = [];");
-					w.println("    for (i=0; i<children.length; i++) {");
-					w.println("      toBeRemoved.push(children.item(i));");
-					w.println("    }");
-					w.println("    for (i=0; i<toBeRemoved.length; i++) {");
-					w.println("      el.removeChild(toBeRemoved[i]);");
-					w.println("    }");
-					w.println("  }");
-					w.println("  document.onreadystatechange = function() {");
-					w.println("    if (document.readyState === 'complete') {");
-					w.println("      document.getElementById('togglemode').addEventListener('click', function() {");
-					w.println("        if (mode === MODE_TAIL_F) {");
-					w.println("          mode = MODE_TAIL_N;");
-					w.println("          displayLinebuff(LINEBUFF_POWER);");
-					w.println("        } else {;");
-					w.println("          mode = MODE_TAIL_F;");
-					w.println("          displayLinebuff(TAIL_DISPLAY_POWER);");
-					w.println("        }");
-					w.println("        var modeEl = document.getElementById('mode');");
-					w.println("        empty(modeEl);");
-					w.println("        modeEl.appendChild(document.createTextNode(mode));");
-					w.println("      });");
-					w.println("    }");
-					w.println("  };");
-					w.println("})();");
-				}
-				w.println("</script>");
+				w.println("<meta charset=\"utf-8\">");
+				w.println("<title>"+escHt(name)+"</title>");
+				w.println("<link rel=\"stylesheet\" href=\""+escHt(assetPath+CSS_ASSET.name+"&v="+CSS_ASSET.version)+"\">");
 			}
 			w.println("</head>");
-			w.println("<body>");
+			w.println("<body data-max-lines=\""+tailFileConfig.maxLineBufferCount+"\" data-sock=\""+escHt(req.getContextPath()+"/tailsock/"+escUrl(name))+"\">");
 			{
 				w.println("<div id=\"header\">");
-				w.println("<h1>"+escHt(this.servletName)+"</h1>");
+				w.println("<h1>"+escHt(name)+"</h1>");
 				String charsetSuffix = tailFileConfig.charset != null ? escHt(" (" + tailFileConfig.charset.name() + ")") : "";
-				w.println("<h2><span id=\"mode\">tail -f</span> "+escHt(""+tailFileConfig.file)+charsetSuffix+"</h2>");
+				if (tailFileConfig.agentClient != null) {
+					w.println("<h2><span id=\"mode\">tail -f</span> "+escHt(tailFileConfig.remoteTail+" @ "+tailFileConfig.agentClient)+"</h2>");
+				} else if (tailFileConfig.sources.isEmpty()) {
+					w.println("<h2><span id=\"mode\">tail -f</span> "+escHt(""+tailFileConfig.file)+charsetSuffix
+							+" <a id=\"download\" href=\""+escHt(self+"?download")+"\">download</a></h2>");
+				} else {
+					final StringBuilder files = new StringBuilder();
+					for (MergeSource source : tailFileConfig.sources) {
+						files.append(files.length() > 0 ? ", " : "").append(source.name).append(": ").append(source.config.file);
+					}
+					w.println("<h2><span id=\"mode\">tail -f</span> "+escHt(files.toString())+charsetSuffix+"</h2>");
+				}
 				w.println("<div id=\"message\">Initializing ...</div>");
 				w.println("<button id=\"togglemode\">&#x25CF;</button>");
 				w.println("</div>");
 				w.println("<div id=\"lines\"></div>");
+				if (initial != null) {
+					// "</" must not end the script element early, "<\/" is the same in JSON
+					w.println("<script type=\"application/json\" id=\"initial\">"+initial.json.replace("</", "<\\/")+"</script>");
+				}
+				w.println("<script src=\""+escHt(assetPath+JS_ASSET.name+"&v="+JS_ASSET.version)+"\"></script>");
 			}
 			w.println("</body>");
 		}
 		w.println("</html>");
+		w.flush();
+		res.setContentType("text/html");
+		res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		final byte[] body = html.toString().getBytes(StandardCharsets.UTF_8);
+		writeBody(res, gzip ? gzip(body) : body, gzip);
+	}
+
+	/**
+	 * tail.js and tail.css: the same for every tail, cached for good under their version
+	 */
+	private void doGetAsset(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		final String name = req.getParameter("asset");
+		final ViewerAsset asset = JS_ASSET.name.equals(name) ? JS_ASSET : CSS_ASSET.name.equals(name) ? CSS_ASSET : null;
+		if (asset == null) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND, "No such asset");
+			return;
+		}
+		final boolean gzip = acceptsGzip(req);
+		final String etag = "\"" + asset.version + (gzip ? "-gz" : "") + "\"";
+		res.setHeader("ETag", etag);
+		res.setHeader("Cache-Control", asset.version.equals(req.getParameter("v")) ? "public, max-age=31536000, immutable" : "no-cache");
+		if (etag.equals(req.getHeader("If-None-Match"))) {
+			res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		res.setContentType(asset.contentType);
+		writeBody(res, gzip ? asset.gzipped : asset.bytes, gzip);
+	}
+
+	/**
+	 * ?archives lists the gzipped siblings of the file, ?archive=name&amp;from=n&amp;count=m returns lines of one of them
+	 * (from the end if from is missing)
+	 */
+	private void doGetArchive(HttpServletRequest req, HttpServletResponse res, TailFileConfig tailFileConfig) throws IOException {
+		if (tailFileConfig.file == null) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND, "No archives for merged or relayed tails");
+			return;
+		}
+		final TailFileWatcher tailFileWatcher = TailFileWatcherListener.tailFileWatcher(getServletContext());
+		final List<File> siblings = tailFileWatcher.compressedSiblings(tailFileConfig.file);
+		final String archive = req.getParameter("archive");
+		final StringBuilder json = new StringBuilder();
+		if (archive == null) {
+			json.append("{\"archives\":[");
+			for (int i=0; i<siblings.size(); i++) {
+				json.append(i > 0 ? "," : "").append('\"').append(TailsockEndpoint.escJson(siblings.get(i).getName())).append('\"');
+			}
+			json.append("]}");
+		} else {
+			File gz = null;
+			for (File sibling : siblings) {
+				if (sibling.getName().equals(archive)) {
+					gz = sibling;
+				}
+			}
+			if (gz == null) {
+				res.sendError(HttpServletResponse.SC_NOT_FOUND, "No such archive");
+				return;
+			}
+			final long from;
+			final int count;
+			try {
+				final String fromStr = req.getParameter("from");
+				final String countStr = req.getParameter("count");
+				from = fromStr != null ? Long.parseLong(fromStr.trim()) : -1L;
+				final int maxLines = tailFileConfig.maxLineBufferCount.intValue();
+				count = Math.min(maxLines, countStr != null ? Integer.parseInt(countStr.trim()) : maxLines);
+			} catch (NumberFormatException e) {
+				res.sendError(HttpServletResponse.SC_BAD_REQUEST, "from and count must be numbers");
+				return;
+			}
+			final List<TailFileObserver.Line> lines = new ArrayList<>(tailFileWatcher.readCompressed(gz, tailFileConfig.charset, from, count));
+			if (tailFileConfig.rules != null) {
+				tailFileConfig.rules.apply(TailFileObserver.FileState.RESET, lines);
+			}
+			json.append(TailsockEndpoint.jsonFrame(TailFileObserver.FileState.RESET, lines, archive));
+		}
+		res.setContentType("application/json");
+		res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		res.getWriter().write(json.toString());
+	}
+
+	/**
+	 * ?download sends the file as it is: only lines ?from=n&amp;count=m if given (the last count lines if from is
+	 * missing), and of these the bytes of a single range Range header. Lines count from 0 at the start of the file,
+	 * as the line numbers the viewer gets and shows do. The bytes go from the file to the socket
+	 * by sendfile if the container offers it, otherwise by {@link FileChannel#transferTo}; never decoded, and
+	 * never near the watcher thread.
+	 */
+	private void doGetDownload(HttpServletRequest req, HttpServletResponse res, TailFileConfig tailFileConfig) throws IOException {
+		if (tailFileConfig.file == null) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND, "No downloads for merged or relayed tails");
+			return;
+		}
+		final Path path = tailFileConfig.file.toPath();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long size = channel.size(); // what is appended meanwhile is not part of it
+			long start = 0L;
+			long end = size;
+			final String fromStr = req.getParameter("from");
+			final String countStr = req.getParameter("count");
+			if (fromStr != null || countStr != null) {
+				try {
+					final long from = fromStr != null ? Long.parseLong(fromStr.trim()) : -1L;
+					final long count = countStr != null ? Long.parseLong(countStr.trim()) : -1L;
+					final long[] lines = TailFileWatcherListener.tailFileWatcher(getServletContext()).lineRange(tailFileConfig.file, tailFileConfig.charset, from, count, size);
+					start = lines[0];
+					end = lines[1];
+				} catch (NumberFormatException e) {
+					res.sendError(HttpServletResponse.SC_BAD_REQUEST, "from and count must be numbers");
+					return;
+				} catch (IllegalArgumentException e) {
+					res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+			}
+			res.setHeader("Accept-Ranges", "bytes");
+			res.setHeader("Cache-Control", "no-store");
+			final String range = req.getHeader("Range");
+			final long[] bytes = range != null && req.getHeader("If-Range") == null ? byteRange(range, end - start) : null; // no validator to compare If-Range with
+			if (bytes != null && bytes.length == 0) {
+				res.setHeader("Content-Range", "bytes */"+(end - start));
+				res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			} else if (bytes != null) {
+				res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				res.setHeader("Content-Range", "bytes "+bytes[0]+"-"+(bytes[1] - 1L)+"/"+(end - start));
+				end = start + bytes[1];
+				start += bytes[0];
+			}
+			res.setContentType(tailFileConfig.charset != null ? "text/plain; charset="+tailFileConfig.charset.name() : "text/plain");
+			res.setHeader("Content-Disposition", "attachment; filename*=UTF-8''"+escUrl(tailFileConfig.file.getName()).replace("+", "%20"));
+			res.setContentLengthLong(end - start);
+			if ("HEAD".equals(req.getMethod())) {
+				return;
+			}
+			if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+				req.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+				req.setAttribute(SENDFILE_START, Long.valueOf(start));
+				req.setAttribute(SENDFILE_END, Long.valueOf(end));
+				return;
+			}
+			final WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+			for (long pos = start; pos < end;) {
+				final long n = channel.transferTo(pos, end - pos, out);
+				if (n <= 0L) {
+					break; // truncated meanwhile: the container sees the short body
+				}
+				pos += n;
+			}
+		} catch (NoSuchFileException e) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND, "file not found");
+		}
 	}
 
 	// ----------------------------------------------------
 	// extract
 	//
+	/**
+	 * @param header value of a Range header
+	 * @return start and end (exclusive) of its single byte range within length, empty if unsatisfiable,
+	 * null to send it all (malformed, other units or several ranges)
+	 */
+	private static long[] byteRange(String header, long length) {
+		final String h = header.trim();
+		if (!h.regionMatches(true, 0, "bytes=", 0, 6) || h.indexOf(',') >= 0) {
+			return null;
+		}
+		final String spec = h.substring(6).trim();
+		final int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			final String firstStr = spec.substring(0, dash).trim();
+			final String lastStr = spec.substring(dash + 1).trim();
+			if (firstStr.isEmpty()) {
+				final long suffix = Long.parseLong(lastStr);
+				return suffix > 0L && length > 0L ? new long[] { Math.max(0L, length - suffix), length } : new long[0];
+			}
+			final long first = Long.parseLong(firstStr);
+			final long last = lastStr.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastStr);
+			if (first < 0L || last < first) {
+				return null;
+			}
+			return first < length ? new long[] { first, Math.min(last, length - 1L) + 1L } : new long[0];
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	/**
+	 * @return the last lines as a frame, projected as requested, or null if there are none yet
+	 */
+	private InitialFrame initialFrame(HttpServletRequest req, Tail tail) {
+		final TailFileConfig tailFileConfig = tail.config;
+		final TailFanout fanout = tail.recent;
+		if (fanout == null) {
+			return null;
+		}
+		final InitialFrame[] initial = new InitialFrame[1];
+		final TailFileObserver snapshot = (state, newLines, message) -> {
+			final Map<String, List<String>> params = new HashMap<>();
+			for (Map.Entry<String, String[]> param : req.getParameterMap().entrySet()) {
+				params.put(param.getKey(), Arrays.asList(param.getValue()));
+			}
+			final TailFileObserver frame = (pState, pLines, pMessage) -> initial[0] = new InitialFrame(fanout.epoch(), newLines, message,
+					TailsockEndpoint.jsonFrame(pState, pLines, pMessage));
+			TailsockEndpoint.projected(params, tailFileConfig, frame).update(state, newLines, message);
+		};
+		fanout.subscribe(snapshot, 0L, -1L); // replays the kept lines right away, if any
+		fanout.unsubscribe(snapshot);
+		return initial[0];
+	}
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		final String acceptEncoding = req.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+	}
+	private static byte[] gzip(byte[] bytes) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // not from memory
+		}
+		return out.toByteArray();
+	}
+	private static void writeBody(HttpServletResponse res, byte[] body, boolean gzipped) throws IOException {
+		res.setHeader("Vary", "Accept-Encoding");
+		if (gzipped) {
+			res.setHeader("Content-Encoding", "gzip");
+		}
+		res.setContentLength(body.length);
+		res.getOutputStream().write(body);
+	}
+	private static TailFileConfig tailFileConfig(ServletConfig config, String prefix, Integer maxLineBufferCount, List<MergeSource> sources, TailLineRules rules) {
+		final String charset = config.getInitParameter(prefix + "charset");
+		final String agent = prefix.isEmpty() ? config.getInitParameter("agent") : null; // not for merge sources: the merger is fed on the watcher thread
+		final String remoteTail = config.getInitParameter("remoteTail");
+		return new TailFileConfig(
+				agent != null ? TailFileWatcherListener.tailAgentClient(config.getServletContext(), agent, maxLineBufferCount.intValue()) : null,
+				remoteTail != null ? remoteTail.trim() : config.getServletName(),
+				config.getInitParameter(prefix + "path"),
+				charset != null ? charset : config.getInitParameter("charset"),
+				servletIntegerInitParam(config, "maxMemMapKiB"),
+				maxLineBufferCount,
+				servletIntegerInitParam(config, "minTimeGapMillis"),
+				config.getInitParameter("catchUp"),
+				sources,
+				servletIntegerInitParam(config, "reorderWindowMillis"),
+				config.getInitParameter("format"),
+				config.getInitParameter("levelField"),
+				rules,
+				servletIntegerInitParam(config, "maxLineLength"),
+				config.getInitParameter("longLines"));
+	}
+	/**
+	 * rules=error,timeout with rule.error=literal:ERROR, rule.timeout=regex:timed? ?out and alert=error; null if there are none
+	 */
+	private static TailLineRules tailLineRules(ServletConfig config) throws ServletException {
+		final String ruleNames = config.getInitParameter("rules");
+		if (ruleNames == null) {
+			return null;
+		}
+		final List<String> alerts = new ArrayList<>();
+		final String alertNames = config.getInitParameter("alert");
+		if (alertNames != null) {
+			for (String alertName : alertNames.split(",")) {
+				alerts.add(alertName.trim());
+			}
+		}
+		final List<TailLineRules.Rule> rules = new ArrayList<>();
+		for (String ruleName : ruleNames.split(",")) {
+			ruleName = ruleName.trim();
+			if (ruleName.isEmpty()) {
+				continue;
+			}
+			final String rule = config.getInitParameter("rule." + ruleName);
+			if (rule == null) {
+				throw new ServletException("No rule."+ruleName);
+			}
+			try {
+				if (rule.startsWith("regex:")) {
+					rules.add(TailLineRules.Rule.regex(ruleName, rule.substring("regex:".length()), alerts.contains(ruleName)));
+				} else {
+					rules.add(TailLineRules.Rule.literal(ruleName, rule.startsWith("literal:") ? rule.substring("literal:".length()) : rule, alerts.contains(ruleName)));
+				}
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Bad rule."+ruleName+": "+e.getMessage(), e);
+			}
+		}
+		return rules.isEmpty() ? null : new TailLineRules(rules);
+	}
 	private static Integer servletIntegerInitParam(ServletConfig config, String name) {
 		final String str = config.getInitParameter(name);
 		return str != null ? Integer.valueOf(str.trim()) : null;
@@ -264,6 +515,13 @@ public final class TailFileServlet extends HttpServlet {
 		}
 		return sb.toString();
 	}
+	private static String unescUrl(final String s) {
+		try {
+			return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return s;
+		}
+	}
 	private static String escUrl(final String s) {
 		try {
 			return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
@@ -278,12 +536,25 @@ public final class TailFileServlet extends HttpServlet {
 	@WebListener
 	public static final class TailFileWatcherListener implements ServletContextListener {
 		private static final String TFW_SERVLET_ATTRIBUTE = TailFileWatcher.class.getName();
-		private static final String S2F_SERVLET_ATTRIBUTE = "tailFileServletName2FileName";
+		private static final String REGISTRY_SERVLET_ATTRIBUTE = TailRegistry.class.getName();
+		private static final String ADMISSION_SERVLET_ATTRIBUTE = TailFileAdmission.class.getName();
+		private static final String AGENT_CLIENTS_SERVLET_ATTRIBUTE = "tailAgentClients";
 		@Override
 		public void contextInitialized(ServletContextEvent sce) {
 			final ServletContext sctx = sce.getServletContext();
-			sctx.setAttribute(TFW_SERVLET_ATTRIBUTE, new TailFileWatcher());
-			sctx.setAttribute(S2F_SERVLET_ATTRIBUTE, new ConcurrentHashMap<String, TailFileConfig>());
+			final String checkpointFile = sctx.getInitParameter("checkpointFile");
+			final TailFileWatcher tailFileWatcher = new TailFileWatcher(checkpointFile != null ? new File(checkpointFile.trim()) : null);
+			sctx.setAttribute(TFW_SERVLET_ATTRIBUTE, tailFileWatcher);
+			final Map<String, TailAgentClient> agentClients = new ConcurrentHashMap<>();
+			sctx.setAttribute(AGENT_CLIENTS_SERVLET_ATTRIBUTE, agentClients);
+			final TailRegistry registry = new TailRegistry(tailFileWatcher, agentClients);
+			sctx.setAttribute(REGISTRY_SERVLET_ATTRIBUTE, registry);
+			sctx.setAttribute(ADMISSION_SERVLET_ATTRIBUTE, new TailFileAdmission(
+					contextIntegerInitParam(sctx, "maxSubscribers"),
+					contextIntegerInitParam(sctx, "maxSubscribersPerTail"),
+					contextIntegerInitParam(sctx, "maxConnectionsPerAddress"),
+					contextIntegerInitParam(sctx, "maxBytesPerSecond"),
+					contextIntegerInitParam(sctx, "burstBytes")));
 			
 			// so ugly. Look away! Or give me a better solution!
 			ServerContainer sc = (ServerContainer) sce.getServletContext().getAttribute("javax.websocket.server.ServerContainer");
@@ -292,23 +563,138 @@ public final class TailFileServlet extends HttpServlet {
 						.build();
 				endpointConfig.getUserProperties().put("sctx", sctx);
 				sc.addEndpoint(endpointConfig);
+				final ServerEndpointConfig muxConfig = ServerEndpointConfig.Builder.create(TailmuxEndpoint.class, "/tailmux")
+						.build();
+				muxConfig.getUserProperties().put("sctx", sctx);
+				sc.addEndpoint(muxConfig);
 			} catch (DeploymentException e) {
 				e.printStackTrace();
 			}
+			
+			final String tailsFile = sctx.getInitParameter("tailsFile");
+			if (tailsFile != null) {
+				registry.watchTailsFile(new File(tailsFile.trim()), sctx);
+			}
 		}
 		@Override
 		public void contextDestroyed(ServletContextEvent sce) {
 			final ServletContext sctx = sce.getServletContext();
+			tailRegistry(sctx).close();
 			tailFileWatcher(sctx).shutdown();
+			for (TailAgentClient client : tailAgentClients(sctx).values()) {
+				client.close();
+			}
+			sctx.removeAttribute(AGENT_CLIENTS_SERVLET_ATTRIBUTE);
 			sctx.removeAttribute(TFW_SERVLET_ATTRIBUTE);
-			sctx.removeAttribute(S2F_SERVLET_ATTRIBUTE);
+			sctx.removeAttribute(REGISTRY_SERVLET_ATTRIBUTE);
+			sctx.removeAttribute(ADMISSION_SERVLET_ATTRIBUTE);
 		}
 		public static TailFileWatcher tailFileWatcher(ServletContext sctx) {
 			return (TailFileWatcher) sctx.getAttribute(TFW_SERVLET_ATTRIBUTE);
 		}
+		/**
+		 * One connection per agent, shared by all tails on it
+		 */
+		static TailAgentClient tailAgentClient(ServletContext sctx, String agent, int bufferedLines) {
+			return tailAgentClients(sctx).computeIfAbsent(agent.trim(), a -> {
+				final TailAgentClient client = TailAgentClient.of(a, bufferedLines);
+				client.start();
+				return client;
+			});
+		}
 		@SuppressWarnings("unchecked")
-		public static Map<String, TailFileConfig> tailFileServletName2FileName(ServletContext sctx) {
-			return (Map<String, TailFileConfig>) sctx.getAttribute(S2F_SERVLET_ATTRIBUTE);
+		private static Map<String, TailAgentClient> tailAgentClients(ServletContext sctx) {
+			return (Map<String, TailAgentClient>) sctx.getAttribute(AGENT_CLIENTS_SERVLET_ATTRIBUTE);
+		}
+		static TailFileAdmission tailFileAdmission(ServletContext sctx) {
+			return (TailFileAdmission) sctx.getAttribute(ADMISSION_SERVLET_ATTRIBUTE);
+		}
+		private static Integer contextIntegerInitParam(ServletContext sctx, String name) {
+			final String str = sctx.getInitParameter(name);
+			return str != null ? Integer.valueOf(str.trim()) : null;
+		}
+		static TailRegistry tailRegistry(ServletContext sctx) {
+			return (TailRegistry) sctx.getAttribute(REGISTRY_SERVLET_ATTRIBUTE);
+		}
+	}
+
+	// ----------------------------------------------------
+	// Admin
+	//
+	/**
+	 * Adds, retunes and removes tails at runtime, without a redeploy; map it to e.g. /tailadmin and protect it, since
+	 * it makes any readable file tailable. GET lists the tails, POST ?name=app&amp;path=/var/log/app.log&amp;... adds one or
+	 * changes the given init-params of it (an empty value drops one), DELETE ?name=app removes it. A tail retuned in
+	 * its tunables only applies them to its open sockets as well; a removed or replaced tail closes them.
+	 */
+	public static final class TailAdminServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+			final StringBuilder json = new StringBuilder("{\"tails\":[");
+			final List<Tail> tails = TailFileWatcherListener.tailRegistry(getServletContext()).tails();
+			for (int i=0; i<tails.size(); i++) {
+				json.append(i > 0 ? "," : "").append(tails.get(i).toJson());
+			}
+			json.append("]}");
+			writeJson(res, json);
+		}
+		@Override
+		protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+			final String name = tailName(req, res);
+			if (name == null) {
+				return;
+			}
+			final TailRegistry registry = TailFileWatcherListener.tailRegistry(getServletContext());
+			final Tail tail;
+			synchronized (registry) {
+				final Tail existing = registry.get(name);
+				final Map<String, String> params = existing != null ? new LinkedHashMap<>(existing.params) : new LinkedHashMap<>();
+				for (Map.Entry<String, String[]> param : req.getParameterMap().entrySet()) {
+					final String value = param.getValue().length > 0 ? param.getValue()[0].trim() : "";
+					if (param.getKey().equals("name")) {
+						continue;
+					} else if (value.isEmpty()) {
+						params.remove(param.getKey());
+					} else {
+						params.put(param.getKey(), value);
+					}
+				}
+				try {
+					tail = Tail.of(new TailServletConfig(name, getServletContext(), params), existing != null ? existing.origin : Tail.ORIGIN_ADMIN);
+				} catch (ServletException e) {
+					res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+				registry.put(tail);
+				res.setStatus(existing != null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CREATED);
+			}
+			writeJson(res, new StringBuilder(tail.toJson()));
+		}
+		@Override
+		protected void doDelete(HttpServletRequest req, HttpServletResponse res) throws IOException {
+			final String name = tailName(req, res);
+			if (name == null) {
+				return;
+			}
+			if (TailFileWatcherListener.tailRegistry(getServletContext()).remove(name) == null) {
+				res.sendError(HttpServletResponse.SC_NOT_FOUND, "No such tail");
+				return;
+			}
+			res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		}
+		private static String tailName(HttpServletRequest req, HttpServletResponse res) throws IOException {
+			final String name = req.getParameter("name");
+			if (name == null || name.trim().isEmpty() || name.indexOf('/') >= 0) {
+				res.sendError(HttpServletResponse.SC_BAD_REQUEST, "name must be given, without '/'");
+				return null;
+			}
+			return name.trim();
+		}
+		private static void writeJson(HttpServletResponse res, StringBuilder json) throws IOException {
+			res.setContentType("application/json");
+			res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			res.getWriter().write(json.toString());
 		}
 	}
 
@@ -316,8 +702,17 @@ public final class TailFileServlet extends HttpServlet {
 	// Web Socket Endpoint
 	//
 	public static final class TailsockEndpoint extends Endpoint {
+		private static final char JSON_OBJ_START = '{';
+		private static final char JSON_OBJ_END = '}';
+		private static final char JSON_QUOT = '\"';
+		private static final char JSON_COLON = ':';
+		private static final char JSON_COMMA = ',';
+		private static final char JSON_ARRAY_START = '[';
+		private static final char JSON_ARRAY_END = ']';
 		private ServletContext sctx;
-		private final Map<String, Long> session2handle = new HashMap<>();
+		private final Map<String, TailSubscription> session2subscription = new HashMap<>();
+		private final Map<String, SessionStats> session2stats = new HashMap<>();
+		private final Map<String, String> session2address = new HashMap<>();
 		@Override
 		public void onOpen(Session session, EndpointConfig config) {
 			System.out.println("Somebody joined :-)");
@@ -325,74 +720,146 @@ public final class TailFileServlet extends HttpServlet {
 			this.sctx = (ServletContext) userProperties.get("sctx");
 			final Map<String, String> pathParameters = session.getPathParameters();
 			final String servletName = pathParameters.get("servletName");
-			final TailFileConfig tailFileConfig = TailFileWatcherListener.tailFileServletName2FileName(sctx).get(servletName);
-			final Long handle = TailFileWatcherListener.tailFileWatcher(sctx).watch(
-					tailFileConfig.file,
-					tailFileConfig.charset,
-					newTailFileObserver(session),
-					tailFileConfig.maxMemMapKiB,
-					tailFileConfig.maxLineBufferCount,
-					tailFileConfig.minTimeGapMillis);
-			this.session2handle.put(session.getId(), handle);
-		}
-		private TailFileObserver newTailFileObserver(Session session) {
+			final Tail tail = TailFileWatcherListener.tailRegistry(sctx).get(servletName);
+			final TailFileConfig tailFileConfig = tail != null ? tail.config : null;
+			if (tailFileConfig == null) {
+				closeQuietly(session, new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "No such tail"));
+				return;
+			}
+			final TailFileAdmission admission = TailFileWatcherListener.tailFileAdmission(sctx);
+			final String address = remoteAddress(session);
+			String refusal = admission.admitConnection(address);
+			if (refusal == null) {
+				refusal = admission.admitSubscriber(servletName);
+				if (refusal != null) {
+					admission.releaseConnection(address);
+				}
+			}
+			if (refusal != null) {
+				System.out.println("Refused "+address+": "+refusal);
+				closeQuietly(session, new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, refusal));
+				return;
+			}
+			this.session2address.put(session.getId(), address);
+			final SessionStats stats = new SessionStats(servletName);
+			stats.objectName = TailFileMetrics.register(stats, "Session", "tail", servletName, "id", session.getId());
+			this.session2stats.put(session.getId(), stats);
+			final TailFileWatcher tailFileWatcher = TailFileWatcherListener.tailFileWatcher(sctx);
+			final TailFileObserver observer;
+			try {
+				observer = projected(session.getRequestParameterMap(), tailFileConfig, newTailFileObserver(session, stats, admission.newTokenBucket()));
+			} catch (IllegalArgumentException e) {
+				closeQuietly(session, new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, e.getMessage()));
+				return;
+			}
+			this.session2subscription.put(session.getId(), tail.subscribe(tailFileWatcher, observer,
+					() -> closeQuietly(session, new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Tail removed or replaced"))));
+		}
+		/**
+		 * The observer behind a {@link TailLineProjector} if the session asked for fields or a level
+		 */
+		static TailFileObserver projected(Map<String, List<String>> params, TailFileConfig tailFileConfig, TailFileObserver observer) {
+			final List<String> fieldsParam = params.get("fields");
+			final List<String> levelParam = params.get("level");
+			final List<String> fields = new ArrayList<>();
+			if (fieldsParam != null) {
+				for (String fieldList : fieldsParam) {
+					for (String field : fieldList.split(",")) {
+						if (!field.trim().isEmpty()) {
+							fields.add(field.trim());
+						}
+					}
+				}
+			}
+			final String level = levelParam != null && !levelParam.isEmpty() && !levelParam.get(0).trim().isEmpty() ? levelParam.get(0).trim() : null;
+			if (fields.isEmpty() && level == null) {
+				return observer;
+			}
+			return new TailLineProjector(observer, tailFileConfig.format, fields, level, tailFileConfig.levelField);
+		}
+		static String remoteAddress(Session session) {
+			final Object address = session.getUserProperties().get("javax.websocket.endpoint.remoteAddress"); // Tomcat
+			if (address instanceof InetSocketAddress) {
+				final InetSocketAddress socketAddress = (InetSocketAddress) address;
+				return socketAddress.getAddress() != null ? socketAddress.getAddress().getHostAddress() : socketAddress.getHostString();
+			}
+			return address != null ? address.toString() : "unknown";
+		}
+		static void closeQuietly(Session session, CloseReason closeReason) {
+			try {
+				session.close(closeReason);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		/**
+		 * @param tokenBucket rate limit, null for none
+		 */
+		private TailFileObserver newTailFileObserver(Session session, SessionStats stats, TailFileAdmission.TokenBucket tokenBucket) {
 			return new TailFileObserver() {
 				private volatile TryAgainer tryAgainer = new TryAgainer();
-				private static final char JSON_OBJ_START = '{';
-				private static final char JSON_OBJ_END = '}';
-				private static final char JSON_QUOT = '\"';
-				private static final char JSON_COLON = ':';
-				private static final char JSON_COMMA = ',';
-				private static final char JSON_ARRAY_START = '[';
-				private static final char JSON_ARRAY_END = ']';
+				private long rateLimitedLines = 0L;
 				@Override
 				public void update(FileState state, List<Line> newLines, String message) {
 					if (tryAgainer.pendingCount > 0) {
-						newLines.addAll(0, tryAgainer.lines);
+						if (newLines != null) {
+							newLines.addAll(0, tryAgainer.lines);
+						}
 						state = tryAgainer.state.and(state);
 						message = tryAgainer.message + " - " + message;
 					}
-					final StringBuilder jsonBld = new StringBuilder();
-					jsonBld.append(JSON_OBJ_START);
-					jsonBld.append(JSON_QUOT).append("state").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(""+state)).append(JSON_QUOT);
-					jsonBld.append(JSON_COMMA);
-					jsonBld.append(JSON_QUOT).append("message").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(message)).append(JSON_QUOT);
-					if (newLines != null) {
-						jsonBld.append(JSON_COMMA);
-						jsonBld.append(JSON_QUOT).append("lines").append(JSON_QUOT).append(JSON_COLON).append(JSON_ARRAY_START);
-						boolean cont = false;
-						for (Line line : newLines) {
-							if (cont) {
-								jsonBld.append(JSON_COMMA);
-							}
-							jsonBld.append(JSON_OBJ_START);
-							jsonBld.append(JSON_QUOT).append("n").append(JSON_QUOT).append(JSON_COLON).append(line.lineno);
-							jsonBld.append(JSON_COMMA);
-							jsonBld.append(JSON_QUOT).append("t").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(line.content)).append(JSON_QUOT);
-							jsonBld.append(JSON_OBJ_END);
-							cont = true;
+					final boolean droppable = state == FileState.CONTINUED || state == FileState.GAP;
+					if (!droppable) {
+						rateLimitedLines = 0L;
+					} else if (rateLimitedLines > 0L) {
+						state = FileState.GAP;
+						message = "rate limited, dropped "+rateLimitedLines+" lines - " + message;
+					}
+					final String json = jsonFrame(state, newLines, message);
+					if (tokenBucket != null) {
+						// chars, not bytes: O(1) and close enough
+						if (!droppable) {
+							tokenBucket.take(json.length());
+						} else if (!tokenBucket.tryTake(json.length())) {
+							final int dropped = newLines != null ? newLines.size() : 0;
+							rateLimitedLines += dropped;
+							stats.droppedLines.addAndGet(dropped);
+							tryAgainer.reset(); // newLines had its lines
+							stats.backlogLines = 0;
+							return;
 						}
-						jsonBld.append(JSON_ARRAY_END);
 					}
-					jsonBld.append(JSON_OBJ_END);
-					final String json = jsonBld.toString();
+					rateLimitedLines = 0L;
 					try {
-						session.getAsyncRemote().sendText(json);
+						stats.inFlightSends.incrementAndGet();
+						session.getAsyncRemote().sendText(json, result -> {
+							stats.inFlightSends.decrementAndGet();
+							if (result.isOK()) {
+								stats.framesSent.incrementAndGet();
+								stats.bytesSent.addAndGet(TailFileMetrics.utf8Length(json));
+							}
+						});
 						tryAgainer.reset();
 					} catch (IllegalStateException e) {
+						stats.inFlightSends.decrementAndGet();
 						System.out.println("Could not send. Will try again next time. "+tryAgainer.pendingCount);
 						if (tryAgainer.pendingCount > 25) {
+							stats.droppedLines.addAndGet(newLines != null ? newLines.size() : tryAgainer.lines.size());
 							tryAgainer.reset();
 							e.printStackTrace();
 						} else {
 							tryAgainer.pendingCount++;
-							tryAgainer.lines.addAll(newLines);
+							if (newLines != null) {
+								tryAgainer.lines.clear(); // newLines starts with them already
+								tryAgainer.lines.addAll(newLines);
+							}
 							tryAgainer.state = tryAgainer.state.and(state);
 							tryAgainer.message = e.getMessage();
 						}
 					} catch (Exception e) {
 						e.printStackTrace();
 					}
+					stats.backlogLines = tryAgainer.lines.size();
 				}
 			};
 		}
@@ -400,13 +867,85 @@ public final class TailFileServlet extends HttpServlet {
 		public void onClose(Session session, CloseReason closeReason) {
 			System.out.println("Somebody left :-(");
 			final String sessionId = session.getId();
-			final Long handle = this.session2handle.get(sessionId);
-			if (handle != null) {
-				TailFileWatcherListener.tailFileWatcher(sctx).unwatch(handle);
+			final TailFileWatcher tailFileWatcher = TailFileWatcherListener.tailFileWatcher(sctx);
+			final TailSubscription subscription = this.session2subscription.remove(sessionId);
+			if (subscription != null) {
+				subscription.cancel(tailFileWatcher);
+			}
+			final SessionStats stats = this.session2stats.remove(sessionId);
+			if (stats != null) {
+				TailFileMetrics.unregister(stats.objectName);
+			}
+			final String address = this.session2address.remove(sessionId);
+			if (address != null) {
+				final TailFileAdmission admission = TailFileWatcherListener.tailFileAdmission(sctx);
+				admission.releaseSubscriber(session.getPathParameters().get("servletName"));
+				admission.releaseConnection(address);
 			}
 			super.onClose(session, closeReason);
 		}
-		private static String escJson(final String s) {
+		static String jsonFrame(TailFileObserver.FileState state, List<TailFileObserver.Line> newLines, String message) {
+			final StringBuilder jsonBld = new StringBuilder();
+			appendJsonFrame(jsonBld, null, state, newLines, message);
+			return jsonBld.toString();
+		}
+		/**
+		 * @param channel of a multiplexed frame, null for none
+		 */
+		static void appendJsonFrame(StringBuilder jsonBld, String channel, TailFileObserver.FileState state, List<TailFileObserver.Line> newLines, String message) {
+			jsonBld.append(JSON_OBJ_START);
+			if (channel != null) {
+				jsonBld.append(JSON_QUOT).append("c").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(channel)).append(JSON_QUOT);
+				jsonBld.append(JSON_COMMA);
+			}
+			jsonBld.append(JSON_QUOT).append("state").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(""+state)).append(JSON_QUOT);
+			jsonBld.append(JSON_COMMA);
+			jsonBld.append(JSON_QUOT).append("message").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(message)).append(JSON_QUOT);
+			if (newLines != null) {
+				jsonBld.append(JSON_COMMA);
+				jsonBld.append(JSON_QUOT).append("lines").append(JSON_QUOT).append(JSON_COLON).append(JSON_ARRAY_START);
+				boolean cont = false;
+				for (TailFileObserver.Line line : newLines) {
+					if (cont) {
+						jsonBld.append(JSON_COMMA);
+					}
+					jsonBld.append(JSON_OBJ_START);
+					jsonBld.append(JSON_QUOT).append("n").append(JSON_QUOT).append(JSON_COLON).append(line.lineno);
+					jsonBld.append(JSON_COMMA);
+					jsonBld.append(JSON_QUOT).append("t").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(line.content)).append(JSON_QUOT);
+					if (line.source != null) {
+						jsonBld.append(JSON_COMMA);
+						jsonBld.append(JSON_QUOT).append("s").append(JSON_QUOT).append(JSON_COLON).append(JSON_QUOT).append(escJson(line.source)).append(JSON_QUOT);
+					}
+					if (line.offset > 0L) {
+						jsonBld.append(JSON_COMMA);
+						jsonBld.append(JSON_QUOT).append("o").append(JSON_QUOT).append(JSON_COLON).append(line.offset);
+					}
+					if (line.omitted > 0L) {
+						jsonBld.append(JSON_COMMA);
+						jsonBld.append(JSON_QUOT).append("x").append(JSON_QUOT).append(JSON_COLON).append(line.omitted);
+					}
+					if (!line.matches.isEmpty()) {
+						jsonBld.append(JSON_COMMA);
+						jsonBld.append(JSON_QUOT).append("h").append(JSON_QUOT).append(JSON_COLON).append(JSON_ARRAY_START);
+						for (int m=0; m<line.matches.size(); m++) {
+							final TailFileObserver.Match match = line.matches.get(m);
+							if (m > 0) {
+								jsonBld.append(JSON_COMMA);
+							}
+							jsonBld.append(JSON_ARRAY_START).append(match.start).append(JSON_COMMA).append(match.end).append(JSON_COMMA);
+							jsonBld.append(JSON_QUOT).append(escJson(match.tag)).append(JSON_QUOT).append(JSON_ARRAY_END);
+						}
+						jsonBld.append(JSON_ARRAY_END);
+					}
+					jsonBld.append(JSON_OBJ_END);
+					cont = true;
+				}
+				jsonBld.append(JSON_ARRAY_END);
+			}
+			jsonBld.append(JSON_OBJ_END);
+		}
+		static String escJson(final String s) {
 			if (s == null) {
 				return "";
 			}
@@ -444,21 +983,962 @@ public final class TailFileServlet extends HttpServlet {
 		}
 	}
 
+	// ----------------------------------------------------
+	// Multiplexed Web Socket Endpoint
+	//
+	/**
+	 * Many tails over one web socket. The client sends text commands
+	 * <pre>
+	 * sub &lt;channel&gt; &lt;servletName&gt;[?fields=...&amp;level=...]
+	 * unsub &lt;channel&gt;
+	 * </pre>
+	 * and receives once per watcher tick at most one {"frames":[...]} message, with one frame
+	 * per channel that has news, tagged with "c": channel. A channel that falls behind while a
+	 * send is in flight or the session is rate limited keeps its newest maxLineBufferCount lines
+	 * and turns into a GAP.
+	 */
+	public static final class TailmuxEndpoint extends Endpoint {
+		private ServletContext sctx;
+		private final Map<String, MuxSession> session2mux = new HashMap<>();
+		@Override
+		public void onOpen(Session session, EndpointConfig config) {
+			System.out.println("Somebody joined the mux :-)");
+			this.sctx = (ServletContext) config.getUserProperties().get("sctx");
+			final TailFileAdmission admission = TailFileWatcherListener.tailFileAdmission(sctx);
+			final String address = TailsockEndpoint.remoteAddress(session);
+			final String refusal = admission.admitConnection(address);
+			if (refusal != null) {
+				System.out.println("Refused "+address+": "+refusal);
+				TailsockEndpoint.closeQuietly(session, new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, refusal));
+				return;
+			}
+			final SessionStats stats = new SessionStats("tailmux");
+			stats.objectName = TailFileMetrics.register(stats, "Session", "tail", "tailmux", "id", session.getId());
+			final MuxSession mux = new MuxSession(session, stats, TailFileWatcherListener.tailFileWatcher(sctx), admission, address);
+			this.session2mux.put(session.getId(), mux);
+			mux.tailFileWatcher.addTickListener(mux.tickListener);
+			session.addMessageHandler(String.class, command -> mux.command(sctx, command));
+		}
+		@Override
+		public void onClose(Session session, CloseReason closeReason) {
+			System.out.println("Somebody left the mux :-(");
+			final MuxSession mux = this.session2mux.remove(session.getId());
+			if (mux != null) {
+				mux.close();
+				TailFileMetrics.unregister(mux.stats.objectName);
+			}
+			super.onClose(session, closeReason);
+		}
+	}
+	private static final class MuxSession {
+		private final Session session;
+		public final SessionStats stats;
+		public final TailFileWatcher tailFileWatcher;
+		private final TailFileAdmission admission;
+		private final String address;
+		/** null for no rate limit */
+		private final TailFileAdmission.TokenBucket tokenBucket;
+		public final Runnable tickListener = this::flush;
+		private final AtomicInteger inFlightSends = new AtomicInteger();
+		// guarded by this: subscriptions come from the container, lines from the watcher thread
+		private final Map<String, TailSubscription> channel2subscription = new HashMap<>();
+		private final Map<String, String> channel2tail = new HashMap<>();
+		private final Map<String, PendingFrame> outbox = new LinkedHashMap<>();
+		public MuxSession(Session session, SessionStats stats, TailFileWatcher tailFileWatcher, TailFileAdmission admission, String address) {
+			this.session = session;
+			this.stats = stats;
+			this.tailFileWatcher = tailFileWatcher;
+			this.admission = admission;
+			this.address = address;
+			this.tokenBucket = admission.newTokenBucket();
+		}
+		public void command(ServletContext sctx, String command) {
+			final String[] words = command.trim().split("\\s+");
+			if (words.length == 3 && "sub".equals(words[0])) {
+				subscribe(sctx, words[1], words[2]);
+			} else if (words.length == 2 && "unsub".equals(words[0])) {
+				unsubscribe(words[1]);
+			} else {
+				synchronized (this) {
+					pendingFrame(words.length > 1 ? words[1] : "")
+							.add(TailFileObserver.FileState.ERROR, null, "Unknown command: "+command, Integer.MAX_VALUE);
+				}
+			}
+		}
+		private void subscribe(ServletContext sctx, String channel, String tail) {
+			unsubscribe(channel);
+			final int q = tail.indexOf('?');
+			final String servletName = q >= 0 ? tail.substring(0, q) : tail;
+			final Tail registered = TailFileWatcherListener.tailRegistry(sctx).get(servletName);
+			final TailFileConfig tailFileConfig = registered != null ? registered.config : null;
+			if (tailFileConfig == null) {
+				synchronized (this) {
+					pendingFrame(channel).add(TailFileObserver.FileState.ERROR, null, "No such tail: "+servletName, Integer.MAX_VALUE);
+				}
+				return;
+			}
+			final String refusal = admission.admitSubscriber(servletName);
+			if (refusal != null) {
+				synchronized (this) {
+					pendingFrame(channel).add(TailFileObserver.FileState.ERROR, null, refusal, Integer.MAX_VALUE);
+				}
+				return;
+			}
+			final int maxLines = tailFileConfig.maxLineBufferCount.intValue();
+			final TailFileObserver channelObserver = (state, newLines, message) -> {
+				synchronized (MuxSession.this) {
+					if (channel2subscription.containsKey(channel)) {
+						stats.droppedLines.addAndGet(pendingFrame(channel).add(state, newLines, message, maxLines));
+					}
+				}
+			};
+			final TailFileObserver observer;
+			try {
+				observer = TailsockEndpoint.projected(queryParameters(q >= 0 ? tail.substring(q + 1) : ""), tailFileConfig, channelObserver);
+			} catch (IllegalArgumentException e) {
+				admission.releaseSubscriber(servletName);
+				synchronized (this) {
+					pendingFrame(channel).add(TailFileObserver.FileState.ERROR, null, e.getMessage(), maxLines);
+				}
+				return;
+			}
+			synchronized (this) {
+				// registered before watching, so that the first RESET is not ignored
+				channel2subscription.put(channel, new TailSubscription(new ArrayList<>(), null, null));
+				channel2tail.put(channel, servletName);
+			}
+			final TailSubscription subscription = registered.subscribe(tailFileWatcher, observer, () -> {
+				unsubscribe(channel);
+				synchronized (this) {
+					pendingFrame(channel).add(TailFileObserver.FileState.DOES_NOT_EXIST, null, "Tail removed or replaced, subscribe again", maxLines);
+				}
+			});
+			final boolean stillWanted;
+			synchronized (this) {
+				stillWanted = channel2subscription.containsKey(channel);
+				if (stillWanted) {
+					channel2subscription.put(channel, subscription);
+				}
+			}
+			if (!stillWanted) {
+				subscription.cancel(tailFileWatcher);
+			}
+		}
+		private void unsubscribe(String channel) {
+			final TailSubscription subscription;
+			final String tail;
+			synchronized (this) {
+				subscription = channel2subscription.remove(channel);
+				tail = channel2tail.remove(channel);
+				outbox.remove(channel);
+			}
+			if (subscription != null) {
+				subscription.cancel(tailFileWatcher);
+				admission.releaseSubscriber(tail);
+			}
+		}
+		public void close() {
+			tailFileWatcher.removeTickListener(tickListener);
+			final List<TailSubscription> subscriptions;
+			final List<String> tails;
+			synchronized (this) {
+				subscriptions = new ArrayList<>(channel2subscription.values());
+				tails = new ArrayList<>(channel2tail.values());
+				channel2subscription.clear();
+				channel2tail.clear();
+				outbox.clear();
+			}
+			for (TailSubscription subscription : subscriptions) {
+				subscription.cancel(tailFileWatcher);
+			}
+			for (String tail : tails) {
+				admission.releaseSubscriber(tail);
+			}
+			admission.releaseConnection(address);
+		}
+		private PendingFrame pendingFrame(String channel) {
+			return outbox.computeIfAbsent(channel, c -> new PendingFrame());
+		}
+		/**
+		 * One send per tick with everything that came up since the last one
+		 */
+		private void flush() {
+			if (inFlightSends.get() > 0 || (tokenBucket != null && !tokenBucket.hasTokens())) {
+				return; // keep collecting
+			}
+			final StringBuilder jsonBld;
+			int lineCount = 0;
+			synchronized (this) {
+				if (outbox.isEmpty()) {
+					return;
+				}
+				jsonBld = new StringBuilder();
+				jsonBld.append("{\"frames\":[");
+				boolean cont = false;
+				for (Map.Entry<String, PendingFrame> entry : outbox.entrySet()) {
+					final PendingFrame frame = entry.getValue();
+					if (cont) {
+						jsonBld.append(',');
+					}
+					TailsockEndpoint.appendJsonFrame(jsonBld, entry.getKey(), frame.state, frame.lines, frame.message());
+					lineCount += frame.lines.size();
+					cont = true;
+				}
+				jsonBld.append("]}");
+				if (tokenBucket != null && !tokenBucket.tryTake(jsonBld.length())) {
+					return; // rate limited, frames stay and are merged with what comes next
+				}
+				outbox.clear();
+			}
+			final String json = jsonBld.toString();
+			try {
+				inFlightSends.incrementAndGet();
+				stats.inFlightSends.incrementAndGet();
+				session.getAsyncRemote().sendText(json, result -> {
+					stats.inFlightSends.decrementAndGet();
+					inFlightSends.decrementAndGet();
+					if (result.isOK()) {
+						stats.framesSent.incrementAndGet();
+						stats.bytesSent.addAndGet(TailFileMetrics.utf8Length(json));
+					}
+				});
+			} catch (IllegalStateException e) {
+				stats.inFlightSends.decrementAndGet();
+				inFlightSends.decrementAndGet();
+				stats.droppedLines.addAndGet(lineCount);
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				int backlog = 0;
+				for (PendingFrame frame : outbox.values()) {
+					backlog += frame.lines.size();
+				}
+				stats.backlogLines = backlog;
+			}
+		}
+		private static Map<String, List<String>> queryParameters(String query) {
+			final Map<String, List<String>> params = new HashMap<>();
+			for (String pair : query.split("&")) {
+				if (pair.isEmpty()) {
+					continue;
+				}
+				final int eq = pair.indexOf('=');
+				final String name = unescUrl(eq >= 0 ? pair.substring(0, eq) : pair);
+				final String value = eq >= 0 ? unescUrl(pair.substring(eq + 1)) : "";
+				params.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+			}
+			return params;
+		}
+	}
+	/**
+	 * What a channel has to send at the next tick
+	 */
+	private static final class PendingFrame {
+		public TailFileObserver.FileState state = null;
+		public final List<TailFileObserver.Line> lines = new ArrayList<>();
+		private String message = "";
+		private long dropped = 0L;
+		/**
+		 * @return the number of lines dropped to stay within maxLines
+		 */
+		public int add(TailFileObserver.FileState newState, List<TailFileObserver.Line> newLines, String newMessage, int maxLines) {
+			if (newState == TailFileObserver.FileState.CONTINUED || newState == TailFileObserver.FileState.GAP) {
+				if (state == null || state == TailFileObserver.FileState.CONTINUED) {
+					state = newState;
+				}
+			} else {
+				state = newState;
+				lines.clear();
+				dropped = 0L;
+			}
+			message = newMessage;
+			if (newLines != null) {
+				lines.addAll(newLines);
+			}
+			final int excess = lines.size() - maxLines;
+			if (excess <= 0) {
+				return 0;
+			}
+			lines.subList(0, excess).clear();
+			dropped += excess;
+			if (state == TailFileObserver.FileState.CONTINUED) {
+				state = TailFileObserver.FileState.GAP;
+			}
+			return excess;
+		}
+		public String message() {
+			return dropped > 0L ? "dropped "+dropped+" lines - "+message : message;
+		}
+	}
+
 	// ----------------------------------------------------
 	// TailFileConfig
 	//
 	private static final class TailFileConfig {
+		/** relay of a tail of another node if not null */
+		public final TailAgentClient agentClient;
+		public final String remoteTail;
 		public final File file;
 		public final Charset charset;
 		public final Integer maxMemMapKiB;
 		public final Integer maxLineBufferCount;
 		public final Integer minTimeGapMillis;
-		public TailFileConfig(String path, String charset, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis) {
-			this.file = new File(path);
+		public final TailFileWatcher.CatchUpMode catchUpMode;
+		/** merged timeline of several files if not empty */
+		public final List<MergeSource> sources;
+		public final Integer reorderWindowMillis;
+		/** of the lines, for projections requested with ?fields=...&amp;level=... */
+		public final TailLineProjector.Format format;
+		public final String levelField;
+		/** highlighting and alerts, null for none */
+		public final TailLineRules rules;
+		public final Integer maxLineLength;
+		public final TailFileWatcher.LongLineMode longLineMode;
+		public TailFileConfig(TailAgentClient agentClient, String remoteTail, String path, String charset, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis, String catchUpMode,
+				List<MergeSource> sources, Integer reorderWindowMillis, String format, String levelField, TailLineRules rules,
+				Integer maxLineLength, String longLineMode) {
+			this.agentClient = agentClient;
+			this.remoteTail = remoteTail;
+			this.file = path != null && agentClient == null ? new File(path) : null;
+			this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+			this.reorderWindowMillis = reorderWindowMillis;
+			this.format = format != null ? TailLineProjector.Format.valueOf(format.trim().toUpperCase(Locale.ROOT)) : TailLineProjector.Format.AUTO;
+			this.levelField = levelField;
+			this.rules = rules;
+			this.maxLineLength = maxLineLength;
+			this.longLineMode = longLineMode != null ? TailFileWatcher.LongLineMode.valueOf(longLineMode.trim().toUpperCase(Locale.ROOT)) : null;
 			this.charset = charset != null ? Charset.forName(charset) : null;
 			this.maxMemMapKiB = maxMemMapKiB;
 			this.maxLineBufferCount = maxLineBufferCount;
 			this.minTimeGapMillis = minTimeGapMillis;
+			this.catchUpMode = catchUpMode != null ? TailFileWatcher.CatchUpMode.valueOf(catchUpMode.trim().toUpperCase(Locale.ROOT)) : null;
+		}
+		/**
+		 * @param rules to tag the lines with, null for none
+		 */
+		public TailFileWatcher.WatchBuilder newWatch(TailFileWatcher tailFileWatcher, TailLineRules rules) {
+			final TailFileWatcher.WatchBuilder watch = tailFileWatcher.newWatch(file)
+					.charset(charset)
+					.catchUp(catchUpMode)
+					.rules(rules)
+					.longLines(longLineMode);
+			if (maxMemMapKiB != null) {
+				watch.maxMemMapKiB(maxMemMapKiB.longValue());
+			}
+			if (maxLineBufferCount != null) {
+				watch.maxLineBufferCount(maxLineBufferCount.intValue());
+			}
+			if (minTimeGapMillis != null) {
+				watch.minTimeGapMillis(minTimeGapMillis.longValue());
+			}
+			if (maxLineLength != null) {
+				watch.maxLineLength(maxLineLength.intValue());
+			}
+			return watch;
+		}
+		/**
+		 * Watches the file, or all sources through a merger
+		 * @param rules to tag the lines with, null for none
+		 */
+		public TailSubscription subscribe(TailFileWatcher tailFileWatcher, TailFileObserver observer, TailLineRules rules) {
+			final List<Long> handles = new ArrayList<>();
+			if (agentClient != null) {
+				// the agent does not know the rules: tag the lines here
+				final TailFileObserver tagging = rules == null ? observer : new TailFileObserver() {
+					@Override
+					public void update(FileState state, List<Line> newLines, String message) {
+						if (newLines != null) {
+							rules.apply(state, newLines);
+						}
+						observer.update(state, newLines, message);
+					}
+					@Override
+					public boolean hasDemand() {
+						return observer.hasDemand();
+					}
+				};
+				agentClient.subscribe(remoteTail, tagging);
+				return new TailSubscription(handles, null, () -> agentClient.unsubscribe(remoteTail, tagging));
+			} else if (sources.isEmpty()) {
+				handles.add(newWatch(tailFileWatcher, rules).observe(observer));
+				return new TailSubscription(handles, null, null);
+			}
+			final TailFileMerger merger = new TailFileMerger(tailFileWatcher, observer,
+					reorderWindowMillis != null ? reorderWindowMillis.longValue() : DEFAULT_REORDER_WINDOW_MILLIS,
+					maxLineBufferCount.intValue());
+			final List<TailFileObserver> sourceObservers = new ArrayList<>();
+			for (MergeSource source : sources) {
+				sourceObservers.add(merger.newSource(source.name, source.timestampPattern, source.zone));
+			}
+			for (int i=0; i<sourceObservers.size(); i++) {
+				handles.add(sources.get(i).config.newWatch(tailFileWatcher, rules).observe(sourceObservers.get(i)));
+			}
+			final Runnable tickListener = merger::tick;
+			tailFileWatcher.addTickListener(tickListener);
+			return new TailSubscription(handles, tickListener, null);
+		}
+		/**
+		 * Gives the watches of a {@link #subscribe(TailFileWatcher, TailFileObserver, TailLineRules)} of a config
+		 * like this one the tunables of this one
+		 */
+		public void retune(TailFileWatcher tailFileWatcher, List<Long> handles) {
+			for (int i=0; i<handles.size(); i++) {
+				final TailFileConfig watched = sources.isEmpty() ? this : sources.get(i).config;
+				watched.newWatch(tailFileWatcher, null).retune(handles.get(i));
+			}
+		}
+	}
+	/**
+	 * A tail by name, with what runs for it whether anybody watches or not: the watch keeping the last lines for
+	 * the page, and for a tail with rules the one read that tags the lines and raises the alerts, which all its
+	 * subscribers share
+	 */
+	private static final class Tail {
+		public static final String ORIGIN_WEB_XML = "web.xml";
+		public static final String ORIGIN_ADMIN = "admin";
+		public static final String ORIGIN_FILE = "tailsFile";
+		public final String name;
+		/** who registered it: {@value #ORIGIN_WEB_XML}, {@value #ORIGIN_ADMIN} or {@value #ORIGIN_FILE} */
+		public final String origin;
+		/** init-params of the watches that a tail can take without a restart, see {@link #retune(TailFileWatcher, Tail)} */
+		private static final Set<String> TUNABLES = new HashSet<>(Arrays.asList(
+				"maxMemMapKiB", "maxLineBufferCount", "minTimeGapMillis", "catchUp", "maxLineLength", "longLines"));
+		/** the init-params it was made of */
+		public volatile Map<String, String> params;
+		public volatile TailFileConfig config;
+		/** the last lines for the page to start with, null if initialLines is 0 */
+		public final TailFanout recent;
+		/** the lines tagged by the rules, for all subscribers; null if there are no rules */
+		private final TailFanout tagged;
+		/** null if no rule alerts */
+		private final TailLineRules alerting;
+		private TailSubscription recentSubscription = null;
+		private TailSubscription taggedSubscription = null;
+		/** every subscription to it, to retune their watches and to close them when it stops */
+		private final Set<TailSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+		private volatile boolean stopped = false;
+		private Tail(String name, String origin, Map<String, String> params, TailFileConfig config, TailFanout recent, TailLineRules alerting) {
+			this.name = name;
+			this.origin = origin;
+			this.params = Collections.unmodifiableMap(params);
+			this.config = config;
+			this.recent = recent;
+			this.tagged = config.rules != null ? new TailFanout(config.maxLineBufferCount.intValue()) : null;
+			this.alerting = alerting;
+		}
+		/**
+		 * @param config init-params of a servlet, or of a tail without one
+		 */
+		public static Tail of(ServletConfig config, String origin) throws ServletException {
+			final String name = config.getServletName();
+			if (config.getInitParameter("path") == null && config.getInitParameter("sources") == null && config.getInitParameter("agent") == null) {
+				throw new ServletException("Tail "+name+" needs a path, sources or an agent");
+			}
+			try {
+				Integer maxLineBufferCount = servletIntegerInitParam(config, "maxLineBufferCount");
+				if (maxLineBufferCount == null) {
+					maxLineBufferCount = TailFileWatcher.DEFAULT_MAX_LINES;
+				}
+				final TailLineRules rules = tailLineRules(config);
+				
+				final List<MergeSource> sources = new ArrayList<>();
+				final String sourceNames = config.getInitParameter("sources");
+				if (sourceNames != null) {
+					for (String sourceName : sourceNames.split(",")) {
+						sourceName = sourceName.trim();
+						if (!sourceName.isEmpty()) {
+							final String timestampPattern = config.getInitParameter(sourceName + ".timestamp");
+							final String timezone = config.getInitParameter(sourceName + ".timezone");
+							sources.add(new MergeSource(sourceName,
+									tailFileConfig(config, sourceName + ".", maxLineBufferCount, Collections.emptyList(), rules),
+									timestampPattern != null ? timestampPattern : DEFAULT_TIMESTAMP_PATTERN,
+									timezone != null ? ZoneId.of(timezone.trim()) : null));
+						}
+					}
+				}
+				final TailFileConfig tailFileConfig = tailFileConfig(config, "", maxLineBufferCount, sources, rules);
+				
+				final Integer initialLines = servletIntegerInitParam(config, "initialLines");
+				// one shared subscription keeps the last lines at hand, so a page comes with them and needs not wait for its socket
+				final TailFanout recent = initialLines == null || initialLines.intValue() > 0
+						? new TailFanout(initialLines != null ? initialLines.intValue() : DEFAULT_INITIAL_LINES) : null;
+				
+				TailLineRules alerting = null;
+				if (rules != null && tailFileConfig.agentClient == null && rules.getRules().stream().anyMatch(rule -> rule.alert)) {
+					final Integer alertIntervalMillis = servletIntegerInitParam(config, "alertIntervalMillis");
+					alerting = rules.withAlertHook(new AlertLog(name,
+							alertIntervalMillis != null ? alertIntervalMillis.longValue() : DEFAULT_ALERT_INTERVAL_MILLIS));
+				}
+				
+				final Map<String, String> params = new TreeMap<>();
+				for (String param : Collections.list(config.getInitParameterNames())) {
+					params.put(param, config.getInitParameter(param));
+				}
+				return new Tail(name, origin, params, tailFileConfig, recent, alerting);
+			} catch (IllegalArgumentException e) { // bad numbers, charsets, modes, time zones
+				throw new ServletException("Bad configuration of tail "+name+": "+e.getMessage(), e);
+			}
+		}
+		public void start(TailFileWatcher tailFileWatcher) {
+			if (tagged != null) {
+				// runs whether anybody watches or not, so alerts do not depend on it
+				taggedSubscription = config.subscribe(tailFileWatcher, tagged, alerting != null ? alerting : config.rules).trackIn(subscriptions);
+			}
+			if (recent != null) {
+				recentSubscription = subscribe(tailFileWatcher, recent, null);
+			}
+		}
+		/**
+		 * Cancels all subscriptions, those of open sockets included, which then close
+		 */
+		public void stop(TailFileWatcher tailFileWatcher) {
+			stopped = true;
+			if (recentSubscription != null) {
+				recentSubscription.cancel(tailFileWatcher);
+				recentSubscription = null;
+			}
+			if (taggedSubscription != null) {
+				taggedSubscription.cancel(tailFileWatcher);
+				taggedSubscription = null;
+				tagged.update(TailFileObserver.FileState.DOES_NOT_EXIST, null, "tail "+name+" stopped"); // nothing comes any more
+			}
+			for (TailSubscription subscription : new ArrayList<>(subscriptions)) {
+				stopped(tailFileWatcher, subscription);
+			}
+		}
+		/**
+		 * Lines tagged by the rules come from the shared read, so they are matched once however many subscribe
+		 * @param whenStopped run when the tail stops, e.g. to close the socket of the subscription; null for nothing
+		 */
+		public TailSubscription subscribe(TailFileWatcher tailFileWatcher, TailFileObserver observer, Runnable whenStopped) {
+			final TailSubscription subscription;
+			if (tagged == null) {
+				subscription = config.subscribe(tailFileWatcher, observer, null);
+			} else {
+				tagged.subscribe(observer, 0L, -1L);
+				subscription = new TailSubscription(new ArrayList<>(), null, () -> tagged.unsubscribe(observer));
+			}
+			subscription.whenTailStopped = whenStopped;
+			subscription.trackIn(subscriptions);
+			if (stopped) {
+				stopped(tailFileWatcher, subscription); // stopped while subscribing
+			}
+			return subscription;
+		}
+		private static void stopped(TailFileWatcher tailFileWatcher, TailSubscription subscription) {
+			subscription.cancel(tailFileWatcher);
+			final Runnable whenStopped = subscription.whenTailStopped;
+			if (whenStopped != null) {
+				try {
+					whenStopped.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		/**
+		 * @return whether tuned differs from this in {@link #TUNABLES} only
+		 */
+		public boolean retunableTo(Tail tuned) {
+			final Map<String, String> mine = new HashMap<>(params);
+			final Map<String, String> theirs = new HashMap<>(tuned.params);
+			mine.keySet().removeAll(TUNABLES);
+			theirs.keySet().removeAll(TUNABLES);
+			return origin.equals(tuned.origin) && mine.equals(theirs);
+		}
+		/**
+		 * Takes the settings of tuned, which must be {@link #retunableTo(Tail)}: the running watches, those of open sockets
+		 * included, go on with them from their next round, and the lines kept stay. A merger keeps its queue length.
+		 */
+		public void retune(TailFileWatcher tailFileWatcher, Tail tuned) {
+			this.params = tuned.params;
+			this.config = tuned.config;
+			if (tagged != null) {
+				tagged.capacity(config.maxLineBufferCount.intValue());
+			}
+			for (TailSubscription subscription : subscriptions) {
+				config.retune(tailFileWatcher, subscription.handles);
+			}
+		}
+		public String toJson() {
+			final StringBuilder json = new StringBuilder();
+			json.append("{\"name\":\"").append(TailsockEndpoint.escJson(name))
+					.append("\",\"origin\":\"").append(TailsockEndpoint.escJson(origin))
+					.append("\",\"params\":{");
+			boolean first = true;
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				json.append(first ? "" : ",").append('\"').append(TailsockEndpoint.escJson(param.getKey()))
+						.append("\":\"").append(TailsockEndpoint.escJson(param.getValue())).append('\"');
+				first = false;
+			}
+			return json.append("}}").toString();
+		}
+	}
+	/**
+	 * The tails by name, for the servlets, the web socket endpoints and the admin servlet, on one watcher.
+	 * A tail put again with other tunables only is retuned in place, its open sockets included; otherwise, e.g. for
+	 * another path or charset, the new tail starts and the old one stops its own watches: the subscriptions of open
+	 * sockets stay as they are, who subscribes from then on gets the new settings. The connection to an agent is
+	 * closed with the last tail on it.
+	 */
+	private static final class TailRegistry {
+		private static final long TAILS_FILE_CHECK_MILLIS = 1000L;
+		private final TailFileWatcher tailFileWatcher;
+		/** by agent, shared with {@link TailFileWatcherListener#tailAgentClient(ServletContext, String, int)} */
+		private final Map<String, TailAgentClient> agentClients;
+		private final Map<String, Tail> name2tail = new ConcurrentHashMap<>();
+		// the tails file: tails=app,gc with app.path=..., app.charset=... and so on
+		private File tailsFile = null;
+		private ServletContext sctx = null;
+		private Runnable tailsFileCheck = null;
+		private volatile String tailsFileStamp = null;
+		private Map<String, Map<String, String>> tailsFileTails = new HashMap<>();
+		private boolean closed = false;
+		public TailRegistry(TailFileWatcher tailFileWatcher, Map<String, TailAgentClient> agentClients) {
+			this.tailFileWatcher = tailFileWatcher;
+			this.agentClients = agentClients;
+		}
+		public Tail get(String name) {
+			return name2tail.get(name);
+		}
+		public List<Tail> tails() {
+			final List<Tail> tails = new ArrayList<>(name2tail.values());
+			tails.sort((t1, t2) -> t1.name.compareTo(t2.name));
+			return tails;
+		}
+		/**
+		 * Retunes the tail of the same name if tail differs in tunables only; otherwise starts tail, then stops the one
+		 * it replaces, if any
+		 */
+		public synchronized void put(Tail tail) {
+			final Tail existing = name2tail.get(tail.name);
+			if (existing != null && existing.retunableTo(tail)) {
+				existing.retune(tailFileWatcher, tail);
+				System.out.println("Retuned tail "+tail.name+" ("+tail.origin+")");
+				return;
+			}
+			tail.start(tailFileWatcher);
+			final Tail replaced = name2tail.put(tail.name, tail);
+			if (replaced != null) {
+				replaced.stop(tailFileWatcher);
+				closeUnusedAgentClient(replaced);
+			}
+			System.out.println((replaced != null ? "Replaced" : "Added")+" tail "+tail.name+" ("+tail.origin+")");
+		}
+		public synchronized Tail remove(String name) {
+			final Tail removed = name2tail.remove(name);
+			if (removed != null) {
+				removed.stop(tailFileWatcher);
+				closeUnusedAgentClient(removed);
+				System.out.println("Removed tail "+name+" ("+removed.origin+")");
+			}
+			return removed;
+		}
+		public synchronized void close() {
+			closed = true;
+			if (tailsFileCheck != null) {
+				tailFileWatcher.removeTickListener(tailsFileCheck);
+				tailsFileCheck = null;
+			}
+			for (Tail tail : name2tail.values()) {
+				tail.stop(tailFileWatcher);
+			}
+			name2tail.clear();
+		}
+		/**
+		 * Loads the tails of file now, and again whenever it changed; checked once a second on the watcher thread
+		 * (by size and modification time, which unlike file events also catches a rewrite of the same size)
+		 */
+		public synchronized void watchTailsFile(File file, ServletContext sctx) {
+			this.tailsFile = file;
+			this.sctx = sctx;
+			this.tailsFileStamp = tailsFileStamp(file);
+			reloadTailsFile();
+			final long[] nextCheck = { System.currentTimeMillis() + TAILS_FILE_CHECK_MILLIS };
+			this.tailsFileCheck = () -> {
+				final long now = System.currentTimeMillis();
+				if (now < nextCheck[0]) {
+					return;
+				}
+				nextCheck[0] = now + TAILS_FILE_CHECK_MILLIS;
+				final String stamp = tailsFileStamp(file);
+				if (!stamp.equals(tailsFileStamp)) {
+					tailsFileStamp = stamp;
+					ForkJoinPool.commonPool().execute(this::reloadTailsFile); // not on the watcher thread
+				}
+			};
+			tailFileWatcher.addTickListener(tailsFileCheck);
+		}
+		/**
+		 * Adds and replaces the tails whose lines in the file changed, removes the tails no longer in it; a name taken
+		 * by web.xml or the admin servlet is left alone
+		 */
+		private synchronized void reloadTailsFile() {
+			if (closed) {
+				return;
+			}
+			final Properties props = new Properties();
+			try (Reader in = Files.newBufferedReader(tailsFile.toPath(), StandardCharsets.UTF_8)) {
+				props.load(in);
+			} catch (NoSuchFileException e) {
+				// no tails
+			} catch (IOException | IllegalArgumentException e) {
+				System.out.println("Could not read "+tailsFile+": "+e);
+				return;
+			}
+			final Map<String, Map<String, String>> loaded = new LinkedHashMap<>();
+			for (String name : props.getProperty("tails", "").split(",")) {
+				name = name.trim();
+				if (name.isEmpty() || name.indexOf('/') >= 0) {
+					continue;
+				}
+				final Map<String, String> params = new TreeMap<>();
+				for (String key : props.stringPropertyNames()) {
+					if (key.startsWith(name + ".")) {
+						params.put(key.substring(name.length() + 1), props.getProperty(key).trim());
+					}
+				}
+				loaded.put(name, params);
+			}
+			for (Map.Entry<String, Map<String, String>> entry : loaded.entrySet()) {
+				final String name = entry.getKey();
+				if (entry.getValue().equals(tailsFileTails.get(name))) {
+					continue; // as before, possibly retuned by the admin servlet since
+				}
+				final Tail existing = name2tail.get(name);
+				if (existing != null && !existing.origin.equals(Tail.ORIGIN_FILE)) {
+					System.out.println("Tail "+name+" of "+tailsFile+" is taken by "+existing.origin);
+					continue;
+				}
+				try {
+					put(Tail.of(new TailServletConfig(name, sctx, entry.getValue()), Tail.ORIGIN_FILE));
+				} catch (ServletException e) {
+					System.out.println(e.getMessage());
+				}
+			}
+			for (String name : tailsFileTails.keySet()) {
+				final Tail existing = name2tail.get(name);
+				if (!loaded.containsKey(name) && existing != null && existing.origin.equals(Tail.ORIGIN_FILE)) {
+					remove(name);
+				}
+			}
+			tailsFileTails = loaded;
+		}
+		/**
+		 * Closes the connection of a stopped tail to its agent unless another tail still uses it
+		 */
+		private void closeUnusedAgentClient(Tail stopped) {
+			final TailAgentClient client = stopped.config.agentClient;
+			if (client == null) {
+				return;
+			}
+			for (Tail tail : name2tail.values()) {
+				if (tail.config.agentClient == client) {
+					return;
+				}
+			}
+			agentClients.values().remove(client);
+			client.close();
+			System.out.println("Closed the connection to "+client);
+		}
+		private static String tailsFileStamp(File file) {
+			return file.length()+"|"+file.lastModified();
+		}
+	}
+	/**
+	 * Init-params of a tail without a servlet of its own
+	 */
+	private static final class TailServletConfig implements ServletConfig {
+		private final String name;
+		private final ServletContext sctx;
+		private final Map<String, String> params;
+		public TailServletConfig(String name, ServletContext sctx, Map<String, String> params) {
+			this.name = name;
+			this.sctx = sctx;
+			this.params = params;
+		}
+		@Override
+		public String getServletName() {
+			return name;
+		}
+		@Override
+		public ServletContext getServletContext() {
+			return sctx;
+		}
+		@Override
+		public String getInitParameter(String param) {
+			return params.get(param);
+		}
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.enumeration(params.keySet());
+		}
+	}
+	private static final class TailSubscription {
+		public final List<Long> handles;
+		/** of a merger, null for a single file */
+		public final Runnable tickListener;
+		/** of a remote subscription, null for a local one */
+		public final Runnable unsubscribe;
+		/** that holds this until it is cancelled, null for none */
+		private volatile Set<TailSubscription> trackedIn = null;
+		/** run after cancelling it when its tail is stopped, null for nothing */
+		volatile Runnable whenTailStopped = null;
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+		public TailSubscription(List<Long> handles, Runnable tickListener, Runnable unsubscribe) {
+			this.handles = handles;
+			this.tickListener = tickListener;
+			this.unsubscribe = unsubscribe;
+		}
+		public TailSubscription trackIn(Set<TailSubscription> subscriptions) {
+			trackedIn = subscriptions;
+			subscriptions.add(this);
+			return this;
+		}
+		public void cancel(TailFileWatcher tailFileWatcher) {
+			if (cancelled.getAndSet(true)) {
+				return; // by its tail and then by its socket
+			}
+			final Set<TailSubscription> subscriptions = trackedIn;
+			if (subscriptions != null) {
+				subscriptions.remove(this);
+			}
+			if (unsubscribe != null) {
+				unsubscribe.run();
+			}
+			if (tickListener != null) {
+				tailFileWatcher.removeTickListener(tickListener);
+			}
+			for (Long handle : handles) {
+				tailFileWatcher.unwatch(handle);
+			}
+		}
+	}
+	private static final class MergeSource {
+		public final String name;
+		public final TailFileConfig config;
+		public final String timestampPattern;
+		public final ZoneId zone;
+		public MergeSource(String name, TailFileConfig config, String timestampPattern, ZoneId zone) {
+			this.name = name;
+			this.config = config;
+			this.timestampPattern = timestampPattern;
+			this.zone = zone;
+		}
+	}
+	private static final class SessionStats implements TailFileMetrics.SessionMXBean {
+		private final String tail;
+		public final AtomicLong framesSent = new AtomicLong();
+		public final AtomicLong bytesSent = new AtomicLong();
+		public final AtomicInteger inFlightSends = new AtomicInteger();
+		public final AtomicLong droppedLines = new AtomicLong();
+		public volatile int backlogLines = 0;
+		public ObjectName objectName;
+		public SessionStats(String tail) {
+			this.tail = tail;
+		}
+		@Override
+		public String getTail() {
+			return tail;
+		}
+		@Override
+		public long getFramesSent() {
+			return framesSent.get();
+		}
+		@Override
+		public long getBytesSent() {
+			return bytesSent.get();
+		}
+		@Override
+		public int getInFlightSends() {
+			return inFlightSends.get();
+		}
+		@Override
+		public int getBacklogLines() {
+			return backlogLines;
+		}
+		@Override
+		public long getDroppedLines() {
+			return droppedLines.get();
+		}
+	}
+	/**
+	 * A static part of the viewer, loaded once from next to this class
+	 */
+	private static final class ViewerAsset {
+		public final String name;
+		public final String contentType;
+		public final byte[] bytes;
+		public final byte[] gzipped;
+		/** hash of the content, as ETag and to make the URL change with it */
+		public final String version;
+		private ViewerAsset(String name, String contentType, byte[] bytes) {
+			this.name = name;
+			this.contentType = contentType;
+			this.bytes = bytes;
+			this.gzipped = gzip(bytes);
+			try {
+				final byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+				final StringBuilder hex = new StringBuilder();
+				for (int i=0; i<8; i++) {
+					hex.append(String.format("%02x", digest[i] & 0xFF));
+				}
+				this.version = hex.toString();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e); // every JRE has it
+			}
+		}
+		public static ViewerAsset load(String name, String contentType) {
+			try (InputStream in = TailFileServlet.class.getResourceAsStream(name)) {
+				if (in == null) {
+					throw new IllegalStateException("Missing resource "+name+" next to "+TailFileServlet.class.getName());
+				}
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final byte[] buf = new byte[8192];
+				for (int n; (n = in.read(buf)) > 0;) {
+					out.write(buf, 0, n);
+				}
+				return new ViewerAsset(name, contentType, out.toByteArray());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	private static final class InitialFrame {
+		/** changes whenever the frame would */
+		public final String version;
+		public final String json;
+		public InitialFrame(long epoch, List<TailFileObserver.Line> lines, String message, String json) {
+			final TailFileObserver.Line last = lines != null && !lines.isEmpty() ? lines.get(lines.size() - 1) : null;
+			this.version = Long.toHexString(epoch) + "-" + (last != null ? last.lineno + "." + last.offset : "none")
+					+ "-" + Integer.toHexString(Objects.hashCode(message) + ASSET_VERSIONS.hashCode());
+			this.json = json;
+		}
+	}
+	/**
+	 * Logs alerts, at most one per tag and interval; called on the watcher thread
+	 */
+	private static final class AlertLog implements TailLineRules.AlertHook {
+		private final String servletName;
+		private final long intervalMillis;
+		private final Map<String, long[]> tag2lastAndSuppressed = new HashMap<>();
+		public AlertLog(String servletName, long intervalMillis) {
+			this.servletName = servletName;
+			this.intervalMillis = intervalMillis;
+		}
+		@Override
+		public void alert(String tag, TailFileObserver.Line line) {
+			final long now = System.currentTimeMillis();
+			final long[] lastAndSuppressed = tag2lastAndSuppressed.computeIfAbsent(tag, t -> new long[] { Long.MIN_VALUE, 0L });
+			if (lastAndSuppressed[0] != Long.MIN_VALUE && now - lastAndSuppressed[0] < intervalMillis) {
+				lastAndSuppressed[1]++;
+				return;
+			}
+			final long suppressed = lastAndSuppressed[1];
+			lastAndSuppressed[0] = now;
+			lastAndSuppressed[1] = 0L;
+			System.out.println("ALERT "+servletName+" ["+tag+"]"+(line.source != null ? " "+line.source : "")+": "+line.content
+					+(suppressed > 0L ? " (and "+suppressed+" more since the last one)" : ""));
 		}
 	}
 	private static final class TryAgainer {
@@ -2,14 +2,15 @@ package flodila.tailfile;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -17,8 +18,10 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,7 +33,15 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import flodila.tailfile.TailFileObserver.FileState;
 
@@ -41,23 +52,75 @@ public class TailFileWatcher {
 	public static final long DEFAULT_MAX_MEM_MAP_KILOBYTES = 1024; // 1 MiB
 	public static final int DEFAULT_MAX_LINES = 1024;
 	public static final long DEFAULT_MIN_TIME_GAP_MILLISECONDS = 50;
+	public static final CatchUpMode DEFAULT_CATCH_UP_MODE = CatchUpMode.STREAM;
+	public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+	public static final LongLineMode DEFAULT_LONG_LINE_MODE = LongLineMode.TRUNCATE;
+	private static final int MAX_CACHED_COMPRESSED_INDEXES = 16;
+	private static final int MAX_CACHED_LINE_INDEXES = 16;
 	private final TailFileWatcherThread mythread;
+	private final Map<String, TailGzipIndex> compressedIndexCache = Collections.synchronizedMap(new LinkedHashMap<String, TailGzipIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TailGzipIndex> eldest) {
+			return size() > MAX_CACHED_COMPRESSED_INDEXES;
+		}
+	});
+
+	private final Map<String, TailLineIndex> lineIndexCache = new LinkedHashMap<String, TailLineIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TailLineIndex> eldest) {
+			return size() > MAX_CACHED_LINE_INDEXES;
+		}
+	};
 
 	// ----------------------------------------------------
 	// life
 	//
 	public TailFileWatcher() {
-		this.mythread = new TailFileWatcherThread();
+		this(null);
+	}
+
+	/**
+	 * @param checkpointFile where to keep the read positions of watches with a checkpoint key, null for none
+	 */
+	public TailFileWatcher(File checkpointFile) {
+		this.mythread = new TailFileWatcherThread(checkpointFile != null ? new TailFileCheckpoints(checkpointFile) : null, TailFileClock.SYSTEM, TailFileEventSource.watchService());
 		this.mythread.start();
 	}
 
+	/**
+	 * A watcher without a thread of its own: whoever drives the clock and the events calls {@link #runOnce()}
+	 */
+	TailFileWatcher(TailFileCheckpoints checkpoints, TailFileClock clock, TailFileEventSource events) {
+		this.mythread = new TailFileWatcherThread(checkpoints, clock, events);
+	}
+
 	public void shutdown() {
 		this.mythread.shutdown();
 	}
 
+	/**
+	 * One round of the watcher loop, on the calling thread; only for watchers that were not started
+	 */
+	void runOnce() throws InterruptedException {
+		if (mythread.getState() != Thread.State.NEW) {
+			throw new IllegalStateException("The watcher runs on its own thread");
+		}
+		mythread.runOnce();
+	}
+
 	// ----------------------------------------------------
 	// API
 	//
+	/**
+	 * @param f file to tail
+	 * @return builder for the options of the watch; finish it with {@link WatchBuilder#observe(TailFileObserver)} or {@link WatchBuilder#publisher()},
+	 * or retune an existing watch with {@link WatchBuilder#retune(Long)}
+	 */
+	public WatchBuilder newWatch(File f) {
+		return new WatchBuilder(this, f);
+	}
 	/**
 	 * @param f file to tail
 	 * @param charset of file
@@ -66,42 +129,310 @@ public class TailFileWatcher {
 	 * @param maxLineBufferCount maximum number of lines sent to the observer
 	 * @param minTimeGapMillis minium number of milliseconds between observer calls
 	 * @return handle to unwatch
+	 * @see #newWatch(File)
 	 */
 	public Long watch(File f, Charset charset, TailFileObserver observer, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis) {
-		return this.mythread.watch(f, charset, observer, maxMemMapKiB, maxLineBufferCount, minTimeGapMillis);
+		return watch(f, charset, observer, maxMemMapKiB, maxLineBufferCount, minTimeGapMillis, null);
+	}
+	/**
+	 * @param catchUpMode what to do if the file grew by more than maxMemMapKiB between two observer calls, default {@link CatchUpMode#STREAM}
+	 * @see #watch(File, Charset, TailFileObserver, Integer, Integer, Integer)
+	 */
+	public Long watch(File f, Charset charset, TailFileObserver observer, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis, CatchUpMode catchUpMode) {
+		return watch(f, charset, observer, maxMemMapKiB, maxLineBufferCount, minTimeGapMillis, catchUpMode, null);
+	}
+	/**
+	 * @param checkpointKey to persist the read position under and to resume from after a restart if the file is still the same;
+	 *            null for none, ignored if the watcher has no checkpoint file
+	 * @see #watch(File, Charset, TailFileObserver, Integer, Integer, Integer, CatchUpMode)
+	 */
+	public Long watch(File f, Charset charset, TailFileObserver observer, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis, CatchUpMode catchUpMode, String checkpointKey) {
+		final WatchBuilder watch = newWatch(f).charset(charset).catchUp(catchUpMode).checkpointKey(checkpointKey);
+		if (maxMemMapKiB != null) {
+			watch.maxMemMapKiB(maxMemMapKiB.longValue());
+		}
+		if (maxLineBufferCount != null) {
+			watch.maxLineBufferCount(maxLineBufferCount.intValue());
+		}
+		if (minTimeGapMillis != null) {
+			watch.minTimeGapMillis(minTimeGapMillis.longValue());
+		}
+		return watch.observe(observer);
 	}
 	public void unwatch(Long handle) {
 		this.mythread.unwatch(handle);
 	}
+	/**
+	 * @return the rotated and gzipped siblings of f, e.g. app.log.1.gz for app.log, newest first
+	 */
+	public List<File> compressedSiblings(File f) {
+		final File dir = f.getAbsoluteFile().getParentFile();
+		final String prefix = f.getName() + ".";
+		final File[] siblings = dir != null ? dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(".gz")) : null;
+		if (siblings == null) {
+			return Collections.emptyList();
+		}
+		final List<File> result = new ArrayList<>(Arrays.asList(siblings));
+		result.sort((f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
+		return result;
+	}
+	/**
+	 * Lines of a gzipped file by way of an index built on first access and cached while the file does not change;
+	 * not on the watcher thread, so it takes as long as it takes
+	 * @param from number of the first line, starting with 0; negative to count from the end
+	 * @param count maximum number of lines
+	 */
+	public List<TailFileObserver.Line> readCompressed(File gz, Charset charset, long from, int count) throws IOException {
+		final Path path = gz.toPath().toRealPath();
+		final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		final String cacheKey = path + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis();
+		TailGzipIndex index = compressedIndexCache.get(cacheKey);
+		if (index == null) {
+			index = TailGzipIndex.build(path);
+			compressedIndexCache.put(cacheKey, index);
+		}
+		final Charset cs = charset != null ? charset : StandardCharsets.UTF_8;
+		return from < 0L ? index.tail(cs, count) : index.lines(cs, from, count);
+	}
+	/**
+	 * Byte offsets of lines of a plain file, by way of a sparse line index kept per file and extended by what was
+	 * appended since; not on the watcher thread
+	 * @param from number of the first line, starting with 0 at the start of the file like {@link TailFileObserver.Line#lineno};
+	 * negative for the last count lines
+	 * @param count maximum number of lines, negative for all
+	 * @param size bytes of the file to consider, e.g. its size when a download started
+	 * @return start and end (exclusive) of the lines
+	 * @throws IllegalArgumentException if lines of the charset cannot be told apart by '\n'
+	 */
+	public long[] lineRange(File f, Charset charset, long from, long count, long size) throws IOException {
+		final Charset cs = charset != null ? charset : StandardCharsets.UTF_8;
+		if (!Arrays.equals("\n".getBytes(cs), new byte[] { '\n' })) {
+			throw new IllegalArgumentException("No line index for "+cs.name());
+		}
+		final Path path = f.toPath().toRealPath();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			return lineIndex(path).byteRange(channel, fileKey != null ? fileKey.toString() : "", Math.min(size, channel.size()), from, count);
+		}
+	}
+	/**
+	 * @return the line index of a file, shared by its downloads and watches
+	 */
+	private TailLineIndex lineIndex(Path realPath) {
+		synchronized (lineIndexCache) {
+			TailLineIndex index = lineIndexCache.get(realPath.toString());
+			if (index == null) {
+				index = new TailLineIndex();
+				lineIndexCache.put(realPath.toString(), index);
+			}
+			return index;
+		}
+	}
+	/**
+	 * @param tickListener to run on the watcher thread after every round, i.e. at least every 50 milliseconds
+	 */
+	public void addTickListener(Runnable tickListener) {
+		this.mythread.tickListeners.add(tickListener);
+	}
+	public void removeTickListener(Runnable tickListener) {
+		this.mythread.tickListeners.remove(tickListener);
+	}
+	/**
+	 * @return the clock the watcher thread decides by, for what runs on it such as a {@link TailFileMerger}
+	 */
+	TailFileClock clock() {
+		return this.mythread.clock;
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	/**
+	 * Options of one watch
+	 */
+	public static final class WatchBuilder {
+		private final TailFileWatcher tailFileWatcher;
+		private final File file;
+		private Charset charset = null;
+		private long maxMemMapKiB = DEFAULT_MAX_MEM_MAP_KILOBYTES;
+		private int maxLineBufferCount = DEFAULT_MAX_LINES;
+		private long minTimeGapMillis = DEFAULT_MIN_TIME_GAP_MILLISECONDS;
+		private CatchUpMode catchUpMode = DEFAULT_CATCH_UP_MODE;
+		private String checkpointKey = null;
+		private TailLineRules rules = null;
+		private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+		private LongLineMode longLineMode = DEFAULT_LONG_LINE_MODE;
+		private WatchBuilder(TailFileWatcher tailFileWatcher, File file) {
+			this.tailFileWatcher = tailFileWatcher;
+			this.file = file;
+		}
+		private WatchBuilder(WatchBuilder other) {
+			this(other.tailFileWatcher, other.file);
+			this.charset = other.charset;
+			this.maxMemMapKiB = other.maxMemMapKiB;
+			this.maxLineBufferCount = other.maxLineBufferCount;
+			this.minTimeGapMillis = other.minTimeGapMillis;
+			this.catchUpMode = other.catchUpMode;
+			this.checkpointKey = other.checkpointKey;
+			this.rules = other.rules;
+			this.maxLineLength = other.maxLineLength;
+			this.longLineMode = other.longLineMode;
+		}
+		/** @param charset of the file, null for UTF-8 */
+		public WatchBuilder charset(Charset charset) {
+			this.charset = charset;
+			return this;
+		}
+		/** @param maxMemMapKiB maximum number of Kilobytes of the file to map into memory at once */
+		public WatchBuilder maxMemMapKiB(long maxMemMapKiB) {
+			if (maxMemMapKiB <= 0L || maxMemMapKiB > Integer.MAX_VALUE / 1024L) {
+				throw new IllegalArgumentException("maxMemMapKiB out of range: "+maxMemMapKiB);
+			}
+			this.maxMemMapKiB = maxMemMapKiB;
+			return this;
+		}
+		/** @param maxLineBufferCount maximum number of lines sent to the observer at once */
+		public WatchBuilder maxLineBufferCount(int maxLineBufferCount) {
+			if (maxLineBufferCount <= 0) {
+				throw new IllegalArgumentException("maxLineBufferCount out of range: "+maxLineBufferCount);
+			}
+			this.maxLineBufferCount = maxLineBufferCount;
+			return this;
+		}
+		/** @param minTimeGapMillis minimum number of milliseconds between observer calls */
+		public WatchBuilder minTimeGapMillis(long minTimeGapMillis) {
+			if (minTimeGapMillis < 0L) {
+				throw new IllegalArgumentException("minTimeGapMillis out of range: "+minTimeGapMillis);
+			}
+			this.minTimeGapMillis = minTimeGapMillis;
+			return this;
+		}
+		/** @param catchUpMode null for the default */
+		public WatchBuilder catchUp(CatchUpMode catchUpMode) {
+			this.catchUpMode = catchUpMode != null ? catchUpMode : DEFAULT_CATCH_UP_MODE;
+			return this;
+		}
+		/** @param checkpointKey to persist the read position under, null for none */
+		public WatchBuilder checkpointKey(String checkpointKey) {
+			this.checkpointKey = checkpointKey;
+			return this;
+		}
+		/** @param rules to tag the lines with, run once per line read; null for none */
+		public WatchBuilder rules(TailLineRules rules) {
+			this.rules = rules;
+			return this;
+		}
+		/** @param maxLineLength maximum number of characters of a line kept in memory, see {@link #longLines(LongLineMode)} */
+		public WatchBuilder maxLineLength(int maxLineLength) {
+			if (maxLineLength <= 0) {
+				throw new IllegalArgumentException("maxLineLength out of range: "+maxLineLength);
+			}
+			this.maxLineLength = maxLineLength;
+			return this;
+		}
+		/** @param longLineMode what to do with lines longer than maxLineLength, null for the default */
+		public WatchBuilder longLines(LongLineMode longLineMode) {
+			this.longLineMode = longLineMode != null ? longLineMode : DEFAULT_LONG_LINE_MODE;
+			return this;
+		}
+		/**
+		 * Gives an existing watch the maxMemMapKiB, maxLineBufferCount, minTimeGapMillis, catch up mode, maxLineLength
+		 * and long line mode of this, from its next round on; its file, charset, checkpoint key, rules and observer stay
+		 * @param handle of the watch
+		 */
+		public void retune(Long handle) {
+			tailFileWatcher.mythread.retune(handle, new WatchBuilder(this));
+		}
+		/**
+		 * @return handle to unwatch
+		 */
+		public Long observe(TailFileObserver observer) {
+			if (observer == null) {
+				throw new IllegalArgumentException("observer is null");
+			}
+			return tailFileWatcher.mythread.watch(new WatchBuilder(this), observer);
+		}
+		/**
+		 * @return publisher delivering on the common fork join pool; every subscriber gets a watch of its own
+		 */
+		public TailFilePublisher publisher() {
+			return publisher(ForkJoinPool.commonPool());
+		}
+		/**
+		 * @param executor to deliver to the subscribers on
+		 */
+		public TailFilePublisher publisher(Executor executor) {
+			return new TailFilePublisher(new WatchBuilder(this), executor);
+		}
+		void unwatch(Long handle) {
+			tailFileWatcher.unwatch(handle);
+		}
+	}
+
+	/**
+	 * What to do if a file grew by more than maxMemMapKiB between two observer calls
+	 */
+	public enum CatchUpMode {
+		/** read the backlog in chunks of maxMemMapKiB, one per observer call, so no line gets lost */
+		STREAM,
+		/** jump to the last maxMemMapKiB and report the skipped bytes and lines with {@link FileState#GAP} */
+		SKIP
+	}
+
+	public enum LongLineMode {
+		/** deliver the first maxLineLength characters once the line ends, and the number of the others as {@link TailFileObserver.Line#omitted} */
+		TRUNCATE,
+		/** deliver every maxLineLength characters as a fragment right away, continuations with an {@link TailFileObserver.Line#offset} */
+		SPLIT
+	}
 
 	// ----------------------------------------------------
 	// Watcher Thread
 	//
-	private static final class TailFileWatcherThread extends Thread {
+	static final class TailFileWatcherThread extends Thread implements TailFileMetrics.WatcherMXBean {
+		/** how long a round waits for file events */
+		static final long POLL_MILLIS = 50L;
 		private static int threadno = 0;
 		private volatile boolean shutdownRequested = false;
-		private final WatchService watchService;
-		private long watchHandleCount = 0L;
+		private final TailFileClock clock;
+		private final TailFileEventSource events;
+		private final AtomicLong watchHandleCount = new AtomicLong();
 		private int filesTouchedSinceLastGarbageCollection = 0;
 		private final Map<String, WatchedDir> watchedDirIndex = new HashMap<>(); // used in run() only
 		private final Map<Long, TailWatchedFile> handle2twf = new ConcurrentHashMap<>(); // added to outside and removed from inside run()
 		private final Map<Long, PendingHandleAction> handle2pendingAction = new ConcurrentHashMap<>(); // added to outside and removed from inside run()
+		private final Map<Long, WatchBuilder> handle2pendingRetune = new ConcurrentHashMap<>(); // added to outside and removed from inside run()
+		private final Map<Long, Long> handle2pendingRenumber = new ConcurrentHashMap<>(); // tail indexed, added to by the line indexer and removed from inside run()
+		/** builds the line indexes the watcher thread must not wait for */
+		private final ExecutorService lineIndexer = Executors.newSingleThreadExecutor(r -> {
+			final Thread thread = new Thread(r, "tail-line-indexer");
+			thread.setDaemon(true);
+			return thread;
+		});
 		private final PendingObserverFodder pendingObserverFodder = new PendingObserverFodder();
+		private final List<Runnable> tickListeners = new CopyOnWriteArrayList<>();
+		private final TailFileMetrics.Histogram loopHistogram = new TailFileMetrics.Histogram();
+		private volatile int pendingObserverFodderCount = 0;
+		private ObjectName objectName;
+		private final TailFileCheckpoints checkpoints; // used in run() only
 
 		// -------------------
 		// life
 		//
-		public TailFileWatcherThread() {
+		public TailFileWatcherThread(TailFileCheckpoints checkpoints, TailFileClock clock, TailFileEventSource events) {
 			super("tail-file-watcher-"+(threadno++));
-			try {
-				this.watchService = FileSystems.getDefault().newWatchService();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			this.checkpoints = checkpoints;
+			this.clock = clock;
+			this.events = events;
+			this.objectName = TailFileMetrics.register(this, "TailFileWatcher", "name", getName());
 		}
 
 		public void shutdown() {
 			shutdownRequested = true;
+			if (getState() == State.NEW) { // driven by runOnce()
+				runShutdown();
+				return;
+			}
 			interrupt();
 			try {
 				join();
@@ -113,21 +444,27 @@ public class TailFileWatcher {
 		// -----------------
 		// API
 		//
-		public Long watch(File f, Charset charset, TailFileObserver observer, Integer maxMemMapKiB, Integer maxLineBufferCount, Integer minTimeGapMillis) {
+		public Long watch(WatchBuilder watch, TailFileObserver observer) {
+			final File f = watch.file;
 			if (f.isDirectory()) {
 				throw new IllegalArgumentException("It's a directory: "+f);
 			}
 			Path realPath = f.toPath();
 			try {
-				realPath = realPath.getParent().toRealPath().resolve(realPath.getFileName());
+				realPath = realPath.toAbsolutePath().getParent().toRealPath().resolve(realPath.getFileName());
 			} catch (IOException e) {
 				throw new IllegalArgumentException("Could not get the real path of "+f, e);
 			}
-			final Long handle = Long.valueOf(watchHandleCount++);
-			final long effMaxMemMapKiB = maxMemMapKiB != null ? maxMemMapKiB.longValue() : DEFAULT_MAX_MEM_MAP_KILOBYTES;
-			final int effMaxLineBufferCount = maxLineBufferCount != null ? maxLineBufferCount.intValue() : DEFAULT_MAX_LINES;
-			final long effMinTimeGapMillis = minTimeGapMillis != null ? minTimeGapMillis.longValue() : DEFAULT_MIN_TIME_GAP_MILLISECONDS;
-			final TailWatchedFile twf = new TailWatchedFile(handle, realPath, charset, observer, effMaxMemMapKiB, effMaxLineBufferCount, effMinTimeGapMillis);
+			final Long handle = Long.valueOf(watchHandleCount.getAndIncrement());
+			final TailWatchedFile twf = new TailWatchedFile(handle, realPath, watch.charset, observer, watch.maxMemMapKiB, watch.maxLineBufferCount, watch.minTimeGapMillis, watch.catchUpMode);
+			twf.clock = clock;
+			twf.checkpointKey = watch.checkpointKey;
+			twf.rules = watch.rules;
+			twf.maxLineLength = watch.maxLineLength;
+			twf.longLineMode = watch.longLineMode;
+			if (twf.asciiCompatible) {
+				twf.lineIndex = watch.tailFileWatcher.lineIndex(realPath);
+			}
 			handle2twf.put(handle, twf);
 			handle2pendingAction.put(handle, PendingHandleAction.WATCH);
 			return handle;
@@ -139,6 +476,12 @@ public class TailFileWatcher {
 			}
 		}
 
+		public void retune(Long handle, WatchBuilder watch) {
+			if (handle != null) {
+				handle2pendingRetune.put(handle, watch);
+			}
+		}
+
 		// -----------------
 		// Thread
 		//
@@ -149,15 +492,79 @@ public class TailFileWatcher {
 					break run;
 				}
 				try {
-					runPendingHandleActions();
-					runPendingObserverFodder();
-					runPollWatchService();
+					runOnce();
 				} catch (InterruptedException e) {
 					System.out.println("Interrupted "+getName());
 				}
 			}
 		}
 
+		void runOnce() throws InterruptedException {
+			final boolean busy = !handle2pendingAction.isEmpty() || !handle2pendingRetune.isEmpty() || !handle2pendingRenumber.isEmpty() || pendingObserverFodderCount > 0;
+			final long startNanos = System.nanoTime();
+			runPendingHandleActions();
+			runPendingObserverFodder();
+			long workNanos = System.nanoTime() - startNanos;
+			final WatchKey watchKey = events.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (watchKey != null) {
+				final long keyStartNanos = System.nanoTime();
+				runWatchKey(watchKey);
+				workNanos += System.nanoTime() - keyStartNanos;
+			}
+			runTickListeners();
+			pendingObserverFodderCount = pendingObserverFodder.size();
+			if (checkpoints != null) {
+				checkpoints.maybeFlush(clock.currentTimeMillis());
+			}
+			if (busy || watchKey != null) {
+				loopHistogram.recordNanos(workNanos);
+			}
+		}
+
+		// -----------------
+		// WatcherMXBean
+		//
+		@Override
+		public int getWatchedFileCount() {
+			return handle2twf.size();
+		}
+		@Override
+		public int getOpenFileHandles() {
+			int count = 0;
+			for (TailWatchedFile twf : handle2twf.values()) {
+				count += twf.getOpenFileHandles();
+			}
+			return count;
+		}
+		@Override
+		public int getPendingObserverFodderCount() {
+			return pendingObserverFodderCount;
+		}
+		@Override
+		public long getLoopIterationCount() {
+			return loopHistogram.count();
+		}
+		@Override
+		public long getLoopIterationP50Micros() {
+			return loopHistogram.percentileMicros(50.0);
+		}
+		@Override
+		public long getLoopIterationP90Micros() {
+			return loopHistogram.percentileMicros(90.0);
+		}
+		@Override
+		public long getLoopIterationP99Micros() {
+			return loopHistogram.percentileMicros(99.0);
+		}
+		@Override
+		public long getLoopIterationMaxMicros() {
+			return loopHistogram.maxMicros();
+		}
+		@Override
+		public long[] getLoopIterationHistogram() {
+			return loopHistogram.snapshot();
+		}
+
 		// -----------------
 		// extracts
 		//
@@ -168,9 +575,17 @@ public class TailFileWatcher {
 					watchedDir.unwatch(handle2twf);
 				}
 				watchedDirIndex.clear();
+				for (TailWatchedFile twf : handle2twf.values()) {
+					TailFileMetrics.unregister(twf.objectName);
+				}
 				handle2twf.clear();
+				lineIndexer.shutdownNow();
+				TailFileMetrics.unregister(objectName);
+				if (checkpoints != null) {
+					checkpoints.flush();
+				}
 				try {
-					watchService.close();
+					events.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -181,6 +596,54 @@ public class TailFileWatcher {
 			}
 		}
 
+		private void runTickListeners() {
+			for (Runnable tickListener : tickListeners) {
+				try {
+					tickListener.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void feedObserver(TailWatchedFile twf, Kind<Path> kind) {
+			final boolean catchingUp = twf.feedObserver(kind);
+			pendingObserverFodder.remove(twf.handle);
+			if (catchingUp) {
+				pendingObserverFodder.put(twf.handle, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			indexLater(twf);
+			maybeGarbageCollect();
+		}
+
+		/**
+		 * Has the line indexer index up to a tail numbered from 0, and the tail sent anew once it is done
+		 */
+		private void indexLater(TailWatchedFile twf) {
+			if (twf.unindexedTailPos < 0L || twf.indexingTail == twf.tails) {
+				return;
+			}
+			final Long handle = twf.handle;
+			final Long tail = Long.valueOf(twf.tails);
+			final long pos = twf.unindexedTailPos;
+			final TailLineIndex lineIndex = twf.lineIndex;
+			final Path path = twf.absFilePath();
+			final String fileKey = twf.fileKey;
+			twf.indexingTail = twf.tails;
+			lineIndexer.execute(() -> {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					final Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+					if (!fileKey.equals(key != null ? key.toString() : "")) {
+						return; // replaced meanwhile, its tail comes anyway
+					}
+					lineIndex.lineEnds(channel, fileKey, pos);
+					handle2pendingRenumber.put(handle, tail);
+				} catch (IOException e) {
+					System.out.println("Could not index the lines of "+path+": "+e);
+				}
+			});
+		}
+
 		private void maybeGarbageCollect() {
 			filesTouchedSinceLastGarbageCollection++;
 			if (filesTouchedSinceLastGarbageCollection >= 512) {
@@ -209,10 +672,7 @@ public class TailFileWatcher {
 					if (watchedDir == null) {
 						WatchKey watchKey;
 						try {
-							watchKey = twf.dirPath.register(watchService,
-									StandardWatchEventKinds.ENTRY_CREATE,
-									StandardWatchEventKinds.ENTRY_DELETE,
-									StandardWatchEventKinds.ENTRY_MODIFY);
+							watchKey = events.register(twf.dirPath);
 						} catch (IOException e) {
 							twf.message = e.toString();
 							watchKey = null;
@@ -222,12 +682,16 @@ public class TailFileWatcher {
 						this.watchedDirIndex.put(dir, watchedDir);
 					}
 					watchedDir.handles.add(handle);
+					if (checkpoints != null && twf.checkpointKey != null) {
+						twf.checkpoints = checkpoints;
+						twf.resumeFrom = checkpoints.get(twf.checkpointKey);
+					}
+					twf.objectName = TailFileMetrics.register(twf, "WatchedFile",
+							"watcher", getName(), "handle", handle.toString(), "path", twf.absFilePath().toString());
 					final boolean rtfo = twf.readyToFeedObserver();
 					if (twf.fileExists()) {
 						if (rtfo) {
-							twf.feedObserver(StandardWatchEventKinds.ENTRY_CREATE);
-							pendingObserverFodder.remove(twf.handle);
-							maybeGarbageCollect();
+							feedObserver(twf, StandardWatchEventKinds.ENTRY_CREATE);
 						} else {
 							pendingObserverFodder.put(twf.handle, StandardWatchEventKinds.ENTRY_CREATE);
 						}
@@ -251,12 +715,30 @@ public class TailFileWatcher {
 						}
 						twf.close();
 					}
+					TailFileMetrics.unregister(twf.objectName);
 					this.handle2twf.remove(handle);
 					break;
 				default:
 					throw new IllegalStateException("Unknown action: "+action);
 				}
 			}
+			for (Long handle : handle2pendingRetune.keySet()) {
+				final WatchBuilder watch = handle2pendingRetune.remove(handle);
+				final TailWatchedFile twf = handle2twf.get(handle);
+				if (twf != null && watch != null) {
+					twf.retune(watch.maxMemMapKiB, watch.maxLineBufferCount, watch.minTimeGapMillis, watch.catchUpMode);
+					twf.maxLineLength = watch.maxLineLength;
+					twf.longLineMode = watch.longLineMode;
+				}
+			}
+			for (Long handle : handle2pendingRenumber.keySet()) {
+				final Long tail = handle2pendingRenumber.remove(handle);
+				final TailWatchedFile twf = handle2twf.get(handle);
+				if (twf != null && tail != null && twf.renumber(tail.longValue())) {
+					pendingObserverFodder.remove(twf.handle);
+					indexLater(twf);
+				}
+			}
 		}
 
 		private void runPendingObserverFodder() {
@@ -267,8 +749,14 @@ public class TailFileWatcher {
 				final TailWatchedFile twf = handle2twf.get(handle);
 				if (twf != null) {
 					if (twf.readyToFeedObserver()) {
-						twf.feedObserver(entry.getValue());
-						handlesToBeRemoved.add(handle);
+						final Kind<Path> kind = entry.getValue();
+						if (twf.feedObserver(kind)) {
+							entry.setValue(StandardWatchEventKinds.ENTRY_MODIFY); // still catching up
+						} else if (kind == StandardWatchEventKinds.ENTRY_DELETE && twf.fileExists()) {
+							entry.setValue(StandardWatchEventKinds.ENTRY_CREATE); // created again meanwhile, e.g. rotated
+						} else {
+							handlesToBeRemoved.add(handle);
+						}
 						maybeGarbageCollect();
 					}
 				} else {
@@ -280,11 +768,7 @@ public class TailFileWatcher {
 			}
 		}
 
-		private void runPollWatchService() throws InterruptedException {
-			final WatchKey watchKey = watchService.poll(50, TimeUnit.MILLISECONDS);
-			if (watchKey == null) {
-				return;
-			}
+		private void runWatchKey(final WatchKey watchKey) {
 			final Watchable watchable = watchKey.watchable();
 			if (watchable == null) {
 				System.out.println("watchable == null");
@@ -317,9 +801,7 @@ public class TailFileWatcher {
 				if (twfs != null) {
 					for (TailWatchedFile twf : twfs) {
 						if (twf.readyToFeedObserver()) {
-							twf.feedObserver(kind);
-							pendingObserverFodder.remove(twf.handle);
-							maybeGarbageCollect();
+							feedObserver(twf, kind);
 						} else {
 							pendingObserverFodder.put(twf.handle, kind);
 						}
@@ -332,68 +814,112 @@ public class TailFileWatcher {
 		// -----------------
 		// type
 		//
-		private static final class TailWatchedFile {
+		static final class TailWatchedFile implements TailFileMetrics.WatchedFileMXBean {
+			private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
 			public final Long handle;
 			public final Path dirPath;
 			public final Path fnamePath;
 			public final CharsetDecoder decoder;
+			private final boolean asciiCompatible;
 			public final TailFileObserver observer;
 			private FileChannel channel = null;
-			private long lastPos = 0L;
+			private volatile long lastPos = 0L;
 			private long lineNo = 0L;
 			public String message = "untouched";
-			boolean wasLF = false;
+			boolean wasCR = false;
+			boolean dropPartialLine = false;
 			final StringBuilder lineBld = new StringBuilder();
-			private final long maxMemMapBytes;
-			private final int maxLineBufferCount;
-			private final long minTimeGapMillis;
-			private long lastFedObserverEmil;
-			public TailWatchedFile(Long handle, Path path, Charset charset, TailFileObserver observer, long maxMemMapKiB, int maxLineBufferCount, long minTimeGapMillis) {
+			// tunables, see retune
+			private long maxMemMapBytes;
+			private int maxLineBufferCount;
+			private long minTimeGapMillis;
+			private CatchUpMode catchUpMode;
+			private long lastFedObserverEmil = Long.MIN_VALUE; // never
+			TailFileClock clock = TailFileClock.SYSTEM;
+			ObjectName objectName;
+			String checkpointKey;
+			TailLineRules rules;
+			/** to number the lines from the start of the file on, null to number them from the first line read */
+			TailLineIndex lineIndex;
+			/** tails sent so far */
+			long tails = 0L;
+			/** where the last tail starts if it was numbered from 0 as the index did not reach it yet, otherwise -1 */
+			long unindexedTailPos = -1L;
+			/** the tail the line indexer is at, -1 for none */
+			long indexingTail = -1L;
+			int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+			LongLineMode longLineMode = DEFAULT_LONG_LINE_MODE;
+			/** characters of the current line delivered as fragments or cut off */
+			private long lineOffset = 0L;
+			private long lineOmitted = 0L;
+			/** lines of the current window dropped to stay within maxLineBufferCount */
+			private int linesDropped = 0;
+			/** state the current window is read in, for the alerts of the rules */
+			private FileState feedState = FileState.RESET;
+			TailFileCheckpoints checkpoints;
+			TailFileCheckpoints.Checkpoint resumeFrom;
+			private String fileKey = "";
+			private volatile boolean open = false;
+			private volatile long bytesRead = 0L;
+			private volatile long linesRead = 0L;
+			private volatile long decodeNanos = 0L;
+			private volatile long mappedBytes = 0L;
+			// lines per second over windows of RATE_WINDOW_NANOS, moved on when lines are read; reading does not change them
+			private volatile long linesAtRateWindowStart = 0L;
+			private volatile long nanosAtRateWindowStart = System.nanoTime();
+			private volatile double lastWindowLinesPerSecond = 0.0;
+			public TailWatchedFile(Long handle, Path path, Charset charset, TailFileObserver observer, long maxMemMapKiB, int maxLineBufferCount, long minTimeGapMillis, CatchUpMode catchUpMode) {
 				this.handle = handle;
-				this.maxMemMapBytes = maxMemMapKiB * 1024L;
-				this.maxLineBufferCount = maxLineBufferCount;
-				this.minTimeGapMillis = minTimeGapMillis;
-				this.lastFedObserverEmil = System.currentTimeMillis() - minTimeGapMillis;
+				retune(maxMemMapKiB, maxLineBufferCount, minTimeGapMillis, catchUpMode);
 				Charset cs = charset != null ? charset : StandardCharsets.UTF_8;
-				this.decoder = cs.newDecoder();
+				this.decoder = cs.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE) // e.g. a window starting in the middle of a character
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				this.asciiCompatible = Arrays.equals("\n\r".getBytes(cs), new byte[] { '\n', '\r' });
 				this.observer = observer;
 				this.dirPath = path.getParent();
 				this.fnamePath = path.getFileName();
 			}
+			/**
+			 * Between two rounds, on the watcher thread
+			 */
+			void retune(long maxMemMapKiB, int maxLineBufferCount, long minTimeGapMillis, CatchUpMode catchUpMode) {
+				this.maxMemMapBytes = maxMemMapKiB * 1024L;
+				this.maxLineBufferCount = maxLineBufferCount;
+				this.minTimeGapMillis = minTimeGapMillis;
+				this.catchUpMode = catchUpMode;
+			}
 			public boolean fileExists() {
 				return absFilePath().toFile().exists();
 			}
 			public boolean readyToFeedObserver() {
-				return System.currentTimeMillis() - lastFedObserverEmil >= minTimeGapMillis;
+				return (lastFedObserverEmil == Long.MIN_VALUE || clock.currentTimeMillis() - lastFedObserverEmil >= minTimeGapMillis) && observer.hasDemand();
 			}
-			public void feedObserver(Kind<Path> kind) {
+			/**
+			 * @return true if there is more to read, i.e. it is catching up in {@link CatchUpMode#STREAM}
+			 */
+			public boolean feedObserver(Kind<Path> kind) {
+				boolean catchingUp = false;
 				try {
 					if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-						feedObserverNewly();
+						catchingUp = feedObserverNewly();
 					} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
 						close();
 						message = "file not found";
 						observer.update(FileState.DOES_NOT_EXIST, null, message);
 					} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
 						if (channel == null) {
-							feedObserverNewly();
+							catchingUp = feedObserverNewly();
 						} else {
 							final long fileSize = channel.size();
-							FileState fileState;
-							boolean zeroLenAsWell;
 							if (fileSize < lastPos) {
 								message = "smaller";
 								reset();
-								fileState = FileState.RESET;
-								zeroLenAsWell = true;
+								feedObserverTail(fileSize);
 							} else {
 								message = "continued";
-								fileState = FileState.CONTINUED;
-								zeroLenAsWell = false;
+								catchingUp = feedObserverFromLastPos(fileSize, false);
 							}
-							long pos = Math.max(lastPos, fileSize - maxMemMapBytes);
-							long size = fileSize - pos;
-							doFeedObserver(fileState, pos, size, zeroLenAsWell);
 						}
 					} else {
 						System.out.println("Unknown kind: "+kind);
@@ -403,64 +929,285 @@ public class TailFileWatcher {
 					this.message = "error: "+e.getMessage();
 					observer.update(FileState.ERROR, null, message);
 					channel = null;
+					catchingUp = false;
 				} finally {
-					lastFedObserverEmil = System.currentTimeMillis();
+					lastFedObserverEmil = clock.currentTimeMillis();
 				}
+				return catchingUp;
 			}
-			private void feedObserverNewly() throws IOException {
+			private boolean feedObserverNewly() throws IOException {
 				open();
 				final long fileSize = channel.size();
-				long pos = Math.max(0L, fileSize - maxMemMapBytes);
-				long size = fileSize - pos;
-				doFeedObserver(FileState.RESET, pos, size, true);
+				final TailFileCheckpoints.Checkpoint cp = resumeFrom;
+				resumeFrom = null;
+				if (cp != null && !fileKey.isEmpty() && cp.fileKey.equals(fileKey) && cp.pos <= fileSize) {
+					lastPos = cp.pos;
+					lineNo = cp.lineNo;
+					wasCR = cp.wasCR;
+					dropPartialLine = cp.dropPartialLine;
+					lineBld.append(cp.partialLine);
+					lineOffset = cp.partialOffset;
+					lineOmitted = cp.partialOmitted;
+					message = "resumed";
+					return feedObserverFromLastPos(fileSize, true);
+				}
+				feedObserverTail(fileSize);
+				return false;
+			}
+			/**
+			 * @return true if it is catching up
+			 */
+			private boolean feedObserverFromLastPos(long fileSize, boolean zeroLenAsWell) throws IOException {
+				final long backlog = fileSize - lastPos;
+				if (backlog <= maxMemMapBytes) {
+					return doFeedObserver(FileState.CONTINUED, lastPos, backlog, zeroLenAsWell);
+				} else if (catchUpMode == CatchUpMode.STREAM) {
+					message = "catching up, "+(backlog - maxMemMapBytes)+" bytes behind";
+					doFeedObserver(FileState.CONTINUED, lastPos, maxMemMapBytes, zeroLenAsWell);
+					return true;
+				} else {
+					feedObserverGap(fileSize);
+					return false;
+				}
+			}
+			private void feedObserverTail(long fileSize) throws IOException {
+				final long pos = Math.max(0L, fileSize - maxMemMapBytes);
+				dropPartialLine = !isLineStart(pos);
+				tails++;
+				unindexedTailPos = -1L;
+				if (lineIndex != null) {
+					// at most a window more to index on this thread, otherwise numbered from 0 until the line indexer is done
+					final long lineEnds = lineIndex.lineEndsIfIndexed(channel, fileKey, pos, maxMemMapBytes);
+					if (lineEnds >= 0L) {
+						lineNo = lineEnds;
+					} else {
+						unindexedTailPos = pos;
+					}
+				}
+				doFeedObserver(FileState.RESET, pos, fileSize - pos, true);
+			}
+			/**
+			 * Sends the tail anew, numbered from the start of the file, if tail is still the last one sent
+			 * @return whether it did
+			 */
+			boolean renumber(long tail) {
+				if (tail != tails || channel == null) {
+					return false;
+				}
+				try {
+					reset();
+					message = "numbered from the start of the file";
+					feedObserverTail(channel.size());
+				} catch (IOException e) {
+					e.printStackTrace();
+					this.message = "error: "+e.getMessage();
+					observer.update(FileState.ERROR, null, message);
+					channel = null;
+				}
+				return true;
+			}
+			/**
+			 * Jump to the last maxMemMapBytes and carry the line numbers over the skipped part
+			 */
+			private void feedObserverGap(long fileSize) throws IOException {
+				final long pos = fileSize - maxMemMapBytes;
+				final long skippedBytes = pos - lastPos;
+				final long skippedLineEnds = countLineEnds(lastPos, pos);
+				lineBld.setLength(0);
+				lineOffset = 0L;
+				lineOmitted = 0L;
+				wasCR = false;
+				dropPartialLine = !isLineStart(pos);
+				if (skippedLineEnds < 0L) {
+					message = "gap: skipped "+skippedBytes+" bytes, line numbers unknown";
+				} else {
+					lineNo += skippedLineEnds;
+					message = "gap: skipped "+skippedBytes+" bytes, "+(skippedLineEnds + (dropPartialLine ? 1 : 0))+" lines";
+				}
+				doFeedObserver(FileState.GAP, pos, fileSize - pos, true);
+			}
+			/**
+			 * @return whether a line starts at pos; if in doubt, false
+			 */
+			private boolean isLineStart(long pos) throws IOException {
+				if (pos == 0L) {
+					return true;
+				} else if (!asciiCompatible) {
+					return false;
+				}
+				final ByteBuffer before = ByteBuffer.allocate(1);
+				return channel.read(before, pos - 1L) == 1 && before.get(0) == '\n';
+			}
+			/**
+			 * @return number of '\n' between from and to, -1 if unknown in this charset
+			 */
+			private long countLineEnds(long from, long to) throws IOException {
+				if (!asciiCompatible) {
+					return -1L;
+				}
+				long count = 0L;
+				for (long pos = from; pos < to; pos += maxMemMapBytes) {
+					final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, pos, Math.min(maxMemMapBytes, to - pos));
+					final int limit = map.limit();
+					for (int i=0; i<limit; i++) {
+						if (map.get(i) == '\n') {
+							count++;
+						}
+					}
+				}
+				return count;
 			}
-			private void doFeedObserver(FileState fileState, long pos, long size, boolean zeroLenAsWell) throws IOException {
+			/**
+			 * In {@link CatchUpMode#STREAM} a continued window stops after maxLineBufferCount lines, so none is lost;
+			 * otherwise the lines before the last maxLineBufferCount are dropped, and a continued window turns into a GAP
+			 * @return true if it stopped before the end of the window
+			 */
+			boolean doFeedObserver(FileState fileState, long pos, long size, boolean zeroLenAsWell) throws IOException {
 				this.lastPos = pos + size;
+				boolean stoppedEarly = false;
 				if (size == 0L) {
 					if (zeroLenAsWell) {
 						observer.update(fileState, Collections.emptyList(), message);
 					}
 				} else {
 					final LinkedList<TailFileObserver.Line> lines = new LinkedList<>();
+					final long lineNoBefore = lineNo;
 					final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, pos, size);
-					final CharBuffer charbuf = decoder.decode(map);
+					mappedBytes = size;
+					final long decodeStartNanos = System.nanoTime();
+					final CharBuffer charbuf = decode(map);
+					this.lastPos = pos + map.position(); // an incomplete character at the end is read again next time
+					// '\n' and '\r' are single bytes in ASCII compatible charsets, which tells where a line ends in the window
+					final boolean stopAtLimit = fileState == FileState.CONTINUED && catchUpMode == CatchUpMode.STREAM && asciiCompatible;
+					long lineEndChars = 0L;
+					linesDropped = 0;
+					feedState = fileState;
 					while (charbuf.hasRemaining()) {
 						final char c = charbuf.get();
 						switch (c) {
 						case '\n':
-							wasLF = true;
-							addline(lines, lineBld);
+							lineEndChars++;
+							if (wasCR) {
+								wasCR = false;
+							} else {
+								endline(lines);
+							}
 							break;
 						case '\r':
-							if (wasLF) {
-								wasLF = false;
+							lineEndChars++;
+							wasCR = true;
+							endline(lines);
+							break;
+						default:
+							if (dropPartialLine) {
+								// skipped anyway
+							} else if (lineBld.length() < maxLineLength || Character.isLowSurrogate(c) && lineBld.length() == maxLineLength) {
+								lineBld.append(c); // the second half of a pair may go one over, so that pairs are never split
+							} else if (longLineMode == LongLineMode.SPLIT) {
+								addfragment(lines);
+								lineBld.append(c);
 							} else {
-								addline(lines, lineBld);
+								lineOmitted++;
 							}
+							wasCR = false;
 							break;
-						default:
-							lineBld.append(c);
-							wasLF = false;
+						}
+						if (stopAtLimit && lines.size() >= maxLineBufferCount && (c == '\n' || c == '\r') && charbuf.hasRemaining()) {
+							this.lastPos = pos + afterLineEnd(map, lineEndChars);
+							stoppedEarly = true;
 							break;
 						}
 					}
-					observer.update(fileState, lines, message);
+					decodeNanos += System.nanoTime() - decodeStartNanos;
+					bytesRead += lastPos - pos; // not the incomplete character read again next time
+					linesRead += lineNo - lineNoBefore;
+					moveRateWindow();
+					FileState state = fileState;
+					if (linesDropped > 0 && fileState == FileState.CONTINUED) {
+						state = FileState.GAP;
+						message = "gap: dropped "+linesDropped+" lines over maxLineBufferCount";
+					}
+					observer.update(state, lines, message);
+				}
+				if (checkpoints != null && checkpointKey != null) {
+					checkpoints.put(checkpointKey, new TailFileCheckpoints.Checkpoint(fileKey, lastPos, lineNo, wasCR, dropPartialLine, lineBld.toString(), lineOffset, lineOmitted));
+				}
+				return stoppedEarly;
+			}
+			/**
+			 * @return offset in map just after its count-th '\n' or '\r'
+			 */
+			private static int afterLineEnd(ByteBuffer map, long count) {
+				final int limit = map.limit();
+				long seen = 0L;
+				for (int i=0; i<limit; i++) {
+					final byte b = map.get(i);
+					if ((b == '\n' || b == '\r') && ++seen == count) {
+						return i + 1;
+					}
+				}
+				return limit;
+			}
+			private CharBuffer decode(ByteBuffer in) {
+				decoder.reset();
+				final CharBuffer out = CharBuffer.allocate((int) Math.ceil(in.remaining() * (double) decoder.maxCharsPerByte()));
+				decoder.decode(in, out, false);
+				out.flip();
+				return out;
+			}
+			private void endline(final LinkedList<TailFileObserver.Line> lines) {
+				if (dropPartialLine) {
+					dropPartialLine = false;
+					lineNo++;
+					lineBld.setLength(0);
+					lineOffset = 0L;
+					lineOmitted = 0L;
+				} else {
+					addline(lines, lineBld);
 				}
 			}
 			private void addline(final LinkedList<TailFileObserver.Line> lines, final StringBuilder lineBld) {
-				lines.add(new TailFileObserver.Line(lineNo++, lineBld.toString()));
+				if (lineOffset == 0L && lineOmitted == 0L) {
+					lines.add(tag(new TailFileObserver.Line(lineNo++, lineBld.toString())));
+				} else {
+					lines.add(tag(new TailFileObserver.Line(lineNo++, lineBld.toString(), null, Collections.emptyList(), lineOffset, lineOmitted)));
+				}
 				if (lines.size() > maxLineBufferCount) {
 					lines.removeFirst();
+					linesDropped++;
 				}
 				lineBld.setLength(0);
+				lineOffset = 0L;
+				lineOmitted = 0L;
+			}
+			/**
+			 * A full lineBld of a line that goes on, with the line number of the line
+			 */
+			private void addfragment(final LinkedList<TailFileObserver.Line> lines) {
+				lines.add(tag(new TailFileObserver.Line(lineNo, lineBld.toString(), null, Collections.emptyList(), lineOffset, 0L)));
+				if (lines.size() > maxLineBufferCount) {
+					lines.removeFirst();
+					linesDropped++;
+				}
+				lineOffset += lineBld.length();
+				lineBld.setLength(0);
+			}
+			/**
+			 * Every line read goes through the rules, before maxLineBufferCount might drop it: alerts are not lost
+			 */
+			private TailFileObserver.Line tag(TailFileObserver.Line line) {
+				return rules != null ? rules.tag(feedState, line) : line;
 			}
 			private void open() throws IOException {
 				close(); // Just to be sure. We might not have done this yet ..
 				channel = (FileChannel) Files.newByteChannel(absFilePath(), StandardOpenOption.READ);
+				open = true;
+				final Object key = Files.readAttributes(absFilePath(), BasicFileAttributes.class).fileKey();
+				fileKey = key != null ? key.toString() : "";
 				System.out.println("Opened file handle for "+absFilePath());
 				this.message = "opened";
 			}
-			private Path absFilePath() {
+			Path absFilePath() {
 				return dirPath.resolve(fnamePath);
 			}
 			public void close() {
@@ -474,13 +1221,75 @@ public class TailFileWatcher {
 						message = "Could not close: "+e;
 					}
 					channel = null;
+					open = false;
 				}
 			}
 			private void reset() {
 				lastPos = 0L;
 				lineNo = 0;
 				lineBld.setLength(0);
-				wasLF = false;
+				lineOffset = 0L;
+				lineOmitted = 0L;
+				wasCR = false;
+				dropPartialLine = false;
+			}
+			// WatchedFileMXBean
+			@Override
+			public String getPath() {
+				return absFilePath().toString();
+			}
+			@Override
+			public long getLastPos() {
+				return lastPos;
+			}
+			@Override
+			public long getLag() {
+				if (!open) {
+					return 0L;
+				}
+				try {
+					return Math.max(0L, Files.size(absFilePath()) - lastPos);
+				} catch (IOException e) {
+					return 0L;
+				}
+			}
+			@Override
+			public long getBytesRead() {
+				return bytesRead;
+			}
+			@Override
+			public long getLinesRead() {
+				return linesRead;
+			}
+			@Override
+			public double getLinesPerSecond() {
+				final long windowNanos = System.nanoTime() - nanosAtRateWindowStart;
+				if (windowNanos >= RATE_WINDOW_NANOS) { // nothing read for a while: the current window, idle time included
+					return (linesRead - linesAtRateWindowStart) * 1e9 / windowNanos;
+				}
+				return lastWindowLinesPerSecond;
+			}
+			private void moveRateWindow() {
+				final long nowNanos = System.nanoTime();
+				final long windowNanos = nowNanos - nanosAtRateWindowStart;
+				if (windowNanos >= RATE_WINDOW_NANOS) {
+					final long lines = linesRead;
+					lastWindowLinesPerSecond = (lines - linesAtRateWindowStart) * 1e9 / windowNanos;
+					linesAtRateWindowStart = lines;
+					nanosAtRateWindowStart = nowNanos;
+				}
+			}
+			@Override
+			public long getDecodeNanos() {
+				return decodeNanos;
+			}
+			@Override
+			public long getMappedBytes() {
+				return mappedBytes;
+			}
+			@Override
+			public int getOpenFileHandles() {
+				return open ? 1 : 0;
 			}
 		}
 		private static final class WatchedDir {
@@ -508,6 +1317,9 @@ public class TailFileWatcher {
 		}
 		private static final class PendingObserverFodder {
 			private final Map<Long, Kind<Path>> handleToFileWatcherKind = new LinkedHashMap<>();
+			public int size() {
+				return handleToFileWatcherKind.size();
+			}
 			public Set<Entry<Long, Kind<Path>>> entrySet() {
 				return handleToFileWatcherKind.entrySet();
 			}
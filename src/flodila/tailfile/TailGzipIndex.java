@@ -0,0 +1,353 @@
+package flodila.tailfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Seekable view of a gzipped log, built by decompressing it once.
+ * <p>
+ * java.util.zip cannot snapshot an inflater in the middle of a deflate stream, so the checkpoints sit on
+ * gzip member boundaries: at most one every {@value #CHECKPOINT_BYTES} bytes of uncompressed data.
+ * Archives written in many members (e.g. by logrotate with pigz or by appending gzip chunks) are
+ * therefore random access; a single member archive is read from the start, but its last
+ * {@value #TAIL_BYTES} bytes are kept from the indexing pass, so its tail is served without inflating.
+ * Lines are split at '\n', which requires an ASCII compatible charset.
+ */
+final class TailGzipIndex {
+	static final long CHECKPOINT_BYTES = 4L * 1024L * 1024L;
+	static final int TAIL_BYTES = 1024 * 1024;
+	private static final int GZIP_MAGIC1 = 0x1f;
+	private static final int GZIP_MAGIC2 = 0x8b;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private final Path path;
+	private final List<Checkpoint> checkpoints;
+	private final long lineCount;
+	private final byte[] tail;
+	private final long tailLineNo;
+
+	// ----------------------------------------------------
+	// life
+	//
+	private TailGzipIndex(Path path, List<Checkpoint> checkpoints, long lineCount, byte[] tail, long tailLineNo) {
+		this.path = path;
+		this.checkpoints = checkpoints;
+		this.lineCount = lineCount;
+		this.tail = tail;
+		this.tailLineNo = tailLineNo;
+	}
+
+	static TailGzipIndex build(Path path) throws IOException {
+		final List<Checkpoint> checkpoints = new ArrayList<>();
+		final byte[] ring = new byte[TAIL_BYTES];
+		long uncompressedPos = 0L;
+		long lineEnds = 0L;
+		byte last = '\n';
+		final Inflater inflater = new Inflater(true);
+		try (InputStream in = Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ))) {
+			final CompressedInput cin = new CompressedInput(in);
+			final byte[] out = new byte[64 * 1024];
+			while (true) {
+				final long memberStart = cin.position();
+				if (!cin.readHeader()) {
+					break;
+				}
+				if (checkpoints.isEmpty() || uncompressedPos - checkpoints.get(checkpoints.size() - 1).uncompressedPos >= CHECKPOINT_BYTES) {
+					checkpoints.add(new Checkpoint(memberStart, uncompressedPos, lineEnds));
+				}
+				inflater.reset();
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						cin.feed(inflater);
+					}
+					final int n;
+					try {
+						n = inflater.inflate(out);
+					} catch (DataFormatException e) {
+						throw new ZipException("Corrupt gzip data in "+path+": "+e.getMessage());
+					}
+					cin.consumed(inflater);
+					for (int i=0; i<n; i++) {
+						if (out[i] == '\n') {
+							lineEnds++;
+						}
+						ring[(int) ((uncompressedPos + i) % TAIL_BYTES)] = out[i];
+					}
+					if (n > 0) {
+						last = out[n - 1];
+						uncompressedPos += n;
+					} else if (inflater.needsDictionary()) {
+						throw new ZipException("Unsupported gzip data in "+path);
+					}
+				}
+				cin.skip(8); // CRC32 and ISIZE
+			}
+		} finally {
+			inflater.end();
+		}
+		// the tail, cut to start at a line
+		final int tailLen = (int) Math.min(TAIL_BYTES, uncompressedPos);
+		byte[] tail = new byte[tailLen];
+		for (int i=0; i<tailLen; i++) {
+			tail[i] = ring[(int) ((uncompressedPos - tailLen + i) % TAIL_BYTES)];
+		}
+		int start = 0;
+		if (tailLen < uncompressedPos) {
+			while (start < tailLen && tail[start] != '\n') {
+				start++;
+			}
+			start = Math.min(tailLen, start + 1);
+		}
+		long tailLineEnds = 0L;
+		for (int i=start; i<tailLen; i++) {
+			if (tail[i] == '\n') {
+				tailLineEnds++;
+			}
+		}
+		final long lineCount = lineEnds + (last != '\n' ? 1 : 0);
+		tail = Arrays.copyOfRange(tail, start, tailLen);
+		return new TailGzipIndex(path, checkpoints, lineCount, tail, lineEnds - tailLineEnds);
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	public long lineCount() {
+		return lineCount;
+	}
+
+	public List<TailFileObserver.Line> tail(Charset charset, int count) throws IOException {
+		return lines(charset, Math.max(0L, lineCount - count), count);
+	}
+
+	/**
+	 * @param from number of the first line, starting with 0
+	 */
+	public List<TailFileObserver.Line> lines(Charset charset, long from, int count) throws IOException {
+		final List<TailFileObserver.Line> lines = new ArrayList<>(Math.min(count, 1024));
+		if (count <= 0 || from >= lineCount) {
+			return lines;
+		}
+		if (from >= tailLineNo) {
+			final LineSplitter splitter = new LineSplitter(charset, tailLineNo, from, count, lines);
+			splitter.accept(tail, tail.length);
+			splitter.finish();
+			return lines;
+		}
+		Checkpoint checkpoint = checkpoints.get(0);
+		for (Checkpoint cp : checkpoints) {
+			if (cp.lineNo > from) {
+				break;
+			}
+			checkpoint = cp;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.position(checkpoint.compressedPos);
+			try (InputStream in = new GZIPInputStream(Channels.newInputStream(channel), 64 * 1024)) {
+				final LineSplitter splitter = new LineSplitter(charset, checkpoint.lineNo, from, count, lines);
+				final byte[] buf = new byte[64 * 1024];
+				int n;
+				while (!splitter.done() && (n = in.read(buf)) > 0) {
+					splitter.accept(buf, n);
+				}
+				splitter.finish();
+			}
+		}
+		return lines;
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	private static final class Checkpoint {
+		public final long compressedPos;
+		public final long uncompressedPos;
+		public final long lineNo;
+		public Checkpoint(long compressedPos, long uncompressedPos, long lineNo) {
+			this.compressedPos = compressedPos;
+			this.uncompressedPos = uncompressedPos;
+			this.lineNo = lineNo;
+		}
+	}
+
+	/**
+	 * Splits bytes at '\n' into the lines from..from+count, cutting lines off at
+	 * {@link TailFileWatcher#DEFAULT_MAX_LINE_LENGTH} bytes
+	 */
+	private static final class LineSplitter {
+		private final Charset charset;
+		private final boolean utf8;
+		private final long from;
+		private final long to;
+		private final List<TailFileObserver.Line> lines;
+		private long lineNo;
+		private byte[] lineBuf = new byte[256];
+		private int lineLen = 0;
+		/** characters cut off, in UTF-8 the bytes that start one, otherwise bytes */
+		private long lineOmitted = 0L;
+		public LineSplitter(Charset charset, long lineNo, long from, int count, List<TailFileObserver.Line> lines) {
+			this.charset = charset;
+			this.utf8 = StandardCharsets.UTF_8.equals(charset);
+			this.lineNo = lineNo;
+			this.from = from;
+			this.to = from + count;
+			this.lines = lines;
+		}
+		public boolean done() {
+			return lineNo >= to;
+		}
+		public void accept(byte[] buf, int len) {
+			for (int i=0; i<len && !done(); i++) {
+				final byte b = buf[i];
+				if (b == '\n') {
+					endline();
+				} else if (lineNo < from) {
+					// not requested
+				} else if (lineLen < TailFileWatcher.DEFAULT_MAX_LINE_LENGTH) {
+					if (lineLen == lineBuf.length) {
+						lineBuf = Arrays.copyOf(lineBuf, lineLen * 2);
+					}
+					lineBuf[lineLen++] = b;
+				} else if (b != '\r' && (!utf8 || (b & 0xC0) != 0x80)) {
+					lineOmitted++;
+				}
+			}
+		}
+		public void finish() {
+			if (lineLen > 0 && !done()) {
+				endline();
+			}
+		}
+		private void endline() {
+			if (lineNo >= from) {
+				int len = lineLen > 0 && lineBuf[lineLen - 1] == '\r' ? lineLen - 1 : lineLen;
+				if (lineOmitted > 0L && utf8) {
+					int start = len; // a character cut in two goes with the omitted ones
+					while (start > 0 && (lineBuf[start - 1] & 0xC0) == 0x80) {
+						start--;
+					}
+					if (start > 0 && (lineBuf[start - 1] & 0xC0) == 0xC0) {
+						final int lead = lineBuf[start - 1] & 0xFF;
+						final int expected = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+						if (len - (start - 1) < expected) {
+							lineOmitted++;
+							len = start - 1;
+						}
+					}
+				}
+				final String content = charset.decode(ByteBuffer.wrap(lineBuf, 0, len)).toString();
+				lines.add(lineOmitted > 0L
+						? new TailFileObserver.Line(lineNo, content, null, Collections.emptyList(), 0L, lineOmitted)
+						: new TailFileObserver.Line(lineNo, content));
+			}
+			lineNo++;
+			lineLen = 0;
+			lineOmitted = 0L;
+		}
+	}
+
+	/**
+	 * Buffered compressed input that knows its position, feeding an inflater and parsing gzip headers
+	 */
+	private static final class CompressedInput {
+		private final InputStream in;
+		private final byte[] buf = new byte[64 * 1024];
+		private int bufPos = 0;
+		private int bufLen = 0;
+		private long bufStart = 0L;
+		public CompressedInput(InputStream in) {
+			this.in = in;
+		}
+		public long position() {
+			return bufStart + bufPos;
+		}
+		private boolean fill() throws IOException {
+			if (bufPos < bufLen) {
+				return true;
+			}
+			bufStart += bufLen;
+			bufPos = 0;
+			bufLen = Math.max(0, in.read(buf));
+			return bufLen > 0;
+		}
+		private int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return buf[bufPos++] & 0xff;
+		}
+		private int readRequired() throws IOException {
+			final int b = read();
+			if (b < 0) {
+				throw new EOFException("Truncated gzip data");
+			}
+			return b;
+		}
+		public void skip(int n) throws IOException {
+			for (int i=0; i<n; i++) {
+				readRequired();
+			}
+		}
+		/**
+		 * @return false at the end of the file
+		 */
+		public boolean readHeader() throws IOException {
+			final int magic1 = read();
+			if (magic1 < 0) {
+				return false;
+			}
+			if (magic1 != GZIP_MAGIC1 || readRequired() != GZIP_MAGIC2 || readRequired() != 8) {
+				throw new ZipException("Not in gzip format");
+			}
+			final int flags = readRequired();
+			skip(6); // MTIME, XFL, OS
+			if ((flags & FEXTRA) != 0) {
+				final int xlen = readRequired() | (readRequired() << 8);
+				skip(xlen);
+			}
+			if ((flags & FNAME) != 0) {
+				while (readRequired() != 0) {
+					// skip zero terminated name
+				}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (readRequired() != 0) {
+					// skip zero terminated comment
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				skip(2);
+			}
+			return true;
+		}
+		public void feed(Inflater inflater) throws IOException {
+			if (!fill()) {
+				throw new EOFException("Truncated gzip data");
+			}
+			inflater.setInput(buf, bufPos, bufLen - bufPos);
+		}
+		public void consumed(Inflater inflater) {
+			if (bufPos < bufLen) {
+				bufPos = bufLen - inflater.getRemaining();
+			}
+		}
+	}
+}
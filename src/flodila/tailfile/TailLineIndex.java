@@ -0,0 +1,180 @@
+package flodila.tailfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sparse index of the line starts of a plain, growing file: the offset of every {@value #STRIDE}th line,
+ * extended by scanning only what was appended since it was last used. A replaced or truncated file
+ * (different file key, smaller than indexed, or another last indexed byte) is indexed anew; asked about
+ * fewer bytes than indexed, e.g. by a download that started earlier, it answers from the index as it is.
+ * <p>
+ * Lines end with '\n', which requires an ASCII compatible charset; a last line without one counts as well.
+ * <p>
+ * Building it takes a scan of the whole file: the watcher thread only asks {@link #lineEndsIfIndexed},
+ * which never waits for it.
+ */
+final class TailLineIndex {
+	static final int STRIDE = 1024;
+	private static final long SCAN_BYTES = 4L * 1024L * 1024L;
+	private Object fileKey = null;
+	/** starts[i] is the offset of line i * STRIDE */
+	private long[] starts = new long[64];
+	private int entries = 1;
+	private long indexedPos = 0L;
+	private long lineEnds = 0L;
+	private byte lastByte = '\n';
+	/** held while indexing or answering */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @param size bytes of the file to consider, at most its size
+	 * @param from number of the first line, starting with 0; negative for the last count lines
+	 * @param count maximum number of lines, negative for all
+	 * @return start and end (exclusive) offsets of the lines
+	 */
+	long[] byteRange(FileChannel channel, Object fileKey, long size, long from, long count) throws IOException {
+		lock.lock();
+		try {
+			update(channel, fileKey, size);
+			final long ends = lineEndsBefore(channel, size);
+			final long lines = ends + (size > 0L && byteAt(channel, size - 1L) != '\n' ? 1L : 0L);
+			final long first = from >= 0L ? from : Math.max(0L, lines - Math.max(0L, count));
+			final long start = offsetOf(channel, first, ends, size);
+			final long end = count < 0L || first + count >= lines ? size : offsetOf(channel, first + count, ends, size);
+			return new long[] { start, end };
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of line ends before pos, i.e. the number of the line pos is in
+	 */
+	long lineEnds(FileChannel channel, Object fileKey, long pos) throws IOException {
+		lock.lock();
+		try {
+			update(channel, fileKey, pos);
+			return lineEndsBefore(channel, pos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Like {@link #lineEnds(FileChannel, Object, long)}, if that takes scanning at most maxScanBytes more than indexed
+	 * @return -1 if the index does not reach pos yet, or is busy
+	 */
+	long lineEndsIfIndexed(FileChannel channel, Object fileKey, long pos, long maxScanBytes) throws IOException {
+		if (!lock.tryLock()) {
+			return -1L;
+		}
+		try {
+			final long from = valid(channel, fileKey) ? indexedPos : 0L;
+			if (pos - from > maxScanBytes) {
+				return -1L;
+			}
+			update(channel, fileKey, pos);
+			return lineEndsBefore(channel, pos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	/**
+	 * @return whether the index is of this file as it is, so far
+	 */
+	private boolean valid(FileChannel channel, Object fileKey) throws IOException {
+		return Objects.equals(this.fileKey, fileKey) && channel.size() >= indexedPos && (indexedPos == 0L || byteAt(channel, indexedPos - 1L) == lastByte);
+	}
+
+	private void update(FileChannel channel, Object fileKey, long size) throws IOException {
+		if (!valid(channel, fileKey)) {
+			this.fileKey = fileKey;
+			entries = 1;
+			indexedPos = 0L;
+			lineEnds = 0L;
+			lastByte = '\n';
+		}
+		for (long pos = indexedPos; pos < size; pos += SCAN_BYTES) {
+			final int len = (int) Math.min(SCAN_BYTES, size - pos);
+			final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, pos, len);
+			for (int i=0; i<len; i++) {
+				if (map.get(i) == '\n') {
+					lineEnds++;
+					if (lineEnds % STRIDE == 0L) {
+						if (entries == starts.length) {
+							starts = Arrays.copyOf(starts, entries * 2);
+						}
+						starts[entries++] = pos + i + 1L;
+					}
+				}
+			}
+			lastByte = map.get(len - 1);
+		}
+		indexedPos = Math.max(indexedPos, size);
+	}
+
+	/**
+	 * @return number of '\n' before size, which is at most indexedPos
+	 */
+	private long lineEndsBefore(FileChannel channel, long size) throws IOException {
+		if (size >= indexedPos) {
+			return lineEnds;
+		}
+		int entry = Arrays.binarySearch(starts, 0, entries, size);
+		entry = entry >= 0 ? entry : -entry - 2;
+		long count = (long) entry * STRIDE;
+		for (long pos = starts[entry]; pos < size; pos += SCAN_BYTES) {
+			final int len = (int) Math.min(SCAN_BYTES, size - pos);
+			final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, pos, len);
+			for (int i=0; i<len; i++) {
+				if (map.get(i) == '\n') {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param ends number of '\n' before size
+	 * @return offset of the start of line, size if there is no such line
+	 */
+	private long offsetOf(FileChannel channel, long line, long ends, long size) throws IOException {
+		if (line > ends) {
+			return size;
+		}
+		long pos = starts[(int) (line / STRIDE)];
+		long skip = line % STRIDE;
+		while (skip > 0L && pos < size) {
+			final int len = (int) Math.min(SCAN_BYTES, size - pos);
+			final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, pos, len);
+			int i = 0;
+			for (; i<len && skip > 0L; i++) {
+				if (map.get(i) == '\n') {
+					skip--;
+				}
+			}
+			pos += i;
+		}
+		return pos;
+	}
+
+	private static byte byteAt(FileChannel channel, long pos) throws IOException {
+		final ByteBuffer b = ByteBuffer.allocate(1);
+		return channel.read(b, pos) == 1 ? b.get(0) : -1;
+	}
+}
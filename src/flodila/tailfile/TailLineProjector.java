@@ -0,0 +1,455 @@
+package flodila.tailfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsing stage between a watched file and an observer for JSON-lines or logfmt files:
+ * passes on only the requested fields of every line, as a compact logfmt row, and drops
+ * lines below a level threshold.
+ * <p>
+ * Lines are not parsed into a tree: a scanner walks the top level keys of a line once,
+ * compares them in place and copies out only the values of the requested fields; it stops
+ * as soon as it has all of them. Lines that do not parse (e.g. stack traces) are passed on
+ * unchanged, and dropped together with the line before them.
+ * <p>
+ * Not thread safe: it is called on the watcher thread like any observer.
+ */
+public final class TailLineProjector implements TailFileObserver {
+	public static final String DEFAULT_LEVEL_FIELD = "level";
+	private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+	private static final int LEVEL_UNKNOWN = -1;
+	private final TailFileObserver downstream;
+	private final Format format;
+	private final String[] fields;
+	/** fields[0..shownCount) are shown, the level field may follow for the threshold only */
+	private final int shownCount;
+	private final int levelFieldIndex;
+	private final int minLevel;
+	private final String[] values;
+	private final StringBuilder valueBld = new StringBuilder();
+	private final StringBuilder rowBld = new StringBuilder();
+	private boolean droppingContinuation = false;
+
+	// ----------------------------------------------------
+	// life
+	//
+	/**
+	 * @param downstream to pass the rows on to
+	 * @param format of the lines
+	 * @param fields to keep, in this order; empty keeps whole lines and only filters by level
+	 * @param minLevel TRACE, DEBUG, INFO, WARN, ERROR or FATAL; null to keep all levels
+	 * @param levelField name of the level field, null for {@value #DEFAULT_LEVEL_FIELD}
+	 */
+	public TailLineProjector(TailFileObserver downstream, Format format, List<String> fields, String minLevel, String levelField) {
+		if (downstream == null) {
+			throw new IllegalArgumentException("downstream is null");
+		}
+		this.downstream = downstream;
+		this.format = format != null ? format : Format.AUTO;
+		this.minLevel = minLevel != null ? level(minLevel, 0, minLevel.length()) : LEVEL_UNKNOWN;
+		if (minLevel != null && this.minLevel == LEVEL_UNKNOWN) {
+			throw new IllegalArgumentException("Unknown level: "+minLevel);
+		}
+		final List<String> scanned = new ArrayList<>(fields != null ? fields : new ArrayList<>());
+		this.shownCount = scanned.size();
+		final String level = levelField != null ? levelField : DEFAULT_LEVEL_FIELD;
+		int levelIndex = scanned.indexOf(level);
+		if (levelIndex < 0 && minLevel != null) {
+			levelIndex = scanned.size();
+			scanned.add(level); // scanned for the threshold, not shown
+		}
+		this.levelFieldIndex = levelIndex;
+		this.fields = scanned.toArray(new String[0]);
+		this.values = new String[this.fields.length];
+	}
+
+	// ----------------------------------------------------
+	// TailFileObserver
+	//
+	@Override
+	public void update(FileState state, List<Line> newLines, String message) {
+		if (newLines == null) {
+			downstream.update(state, null, message);
+			return;
+		}
+		if (state != FileState.CONTINUED) {
+			droppingContinuation = false;
+		}
+		final List<Line> rows = new ArrayList<>(newLines.size());
+		for (Line line : newLines) {
+			final Line row = project(line);
+			if (row != null) {
+				rows.add(row);
+			}
+		}
+		downstream.update(state, rows, message);
+	}
+
+	@Override
+	public boolean hasDemand() {
+		return downstream.hasDemand();
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	/**
+	 * @return the row to pass on, null if the line is below the level threshold
+	 */
+	Line project(Line line) {
+		final String s = line.content;
+		for (int i=0; i<values.length; i++) {
+			values[i] = null;
+		}
+		final boolean parsed;
+		switch (format) {
+		case JSON:
+			parsed = scanJson(s);
+			break;
+		case LOGFMT:
+			parsed = scanLogfmt(s);
+			break;
+		default:
+			parsed = startsWithObject(s) ? scanJson(s) : scanLogfmt(s);
+			break;
+		}
+		if (!parsed) {
+			return droppingContinuation ? null : line;
+		}
+		if (minLevel != LEVEL_UNKNOWN) {
+			final String levelValue = values[levelFieldIndex];
+			final int level = levelValue != null ? level(levelValue, 0, levelValue.length()) : LEVEL_UNKNOWN;
+			droppingContinuation = level != LEVEL_UNKNOWN && level < minLevel;
+			if (droppingContinuation) {
+				return null;
+			}
+		}
+		if (shownCount == 0) {
+			return line;
+		}
+		rowBld.setLength(0);
+		for (int i=0; i<shownCount; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			if (rowBld.length() > 0) {
+				rowBld.append(' ');
+			}
+			rowBld.append(fields[i]).append('=');
+			appendLogfmtValue(rowBld, values[i]);
+		}
+		return new Line(line.lineno, rowBld.toString(), line.source, Collections.emptyList(), line.offset, line.omitted);
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	private static boolean startsWithObject(String s) {
+		final int i = skipSpace(s, 0);
+		return i < s.length() && s.charAt(i) == '{';
+	}
+
+	/**
+	 * Top level keys of a JSON object; nested values are skipped without looking into them
+	 * @return false if the line is not a JSON object
+	 */
+	private boolean scanJson(String s) {
+		final int len = s.length();
+		int i = skipSpace(s, 0);
+		if (i >= len || s.charAt(i) != '{') {
+			return false;
+		}
+		int missing = values.length;
+		i = skipSpace(s, i + 1);
+		if (i < len && s.charAt(i) == '}') {
+			return true;
+		}
+		while (i < len && missing > 0) {
+			if (s.charAt(i) != '"') {
+				return false;
+			}
+			final int keyStart = i + 1;
+			final int keyEnd = skipJsonString(s, i);
+			if (keyEnd < 0) {
+				return false;
+			}
+			i = skipSpace(s, keyEnd + 1);
+			if (i >= len || s.charAt(i) != ':') {
+				return false;
+			}
+			i = skipSpace(s, i + 1);
+			final int field = fieldIndex(s, keyStart, keyEnd);
+			final int valueEnd;
+			if (i < len && s.charAt(i) == '"') {
+				valueEnd = skipJsonString(s, i);
+				if (valueEnd < 0) {
+					return false;
+				}
+				if (field >= 0 && values[field] == null) {
+					values[field] = unescapeJson(s, i + 1, valueEnd);
+					missing--;
+				}
+				i = valueEnd + 1;
+			} else {
+				valueEnd = skipJsonValue(s, i);
+				if (valueEnd < 0) {
+					return false;
+				}
+				if (field >= 0 && values[field] == null) {
+					values[field] = s.substring(i, valueEnd).trim();
+					missing--;
+				}
+				i = valueEnd;
+			}
+			i = skipSpace(s, i);
+			if (i < len && s.charAt(i) == ',') {
+				i = skipSpace(s, i + 1);
+			} else if (i < len && s.charAt(i) == '}') {
+				return true;
+			} else {
+				return false;
+			}
+		}
+		return true; // stopped early, the rest is not looked at
+	}
+
+	/**
+	 * key=value and key="quoted value" pairs separated by spaces
+	 * @return false if the line has no pair at all
+	 */
+	private boolean scanLogfmt(String s) {
+		final int len = s.length();
+		int missing = values.length;
+		boolean pairs = false;
+		int i = skipSpace(s, 0);
+		while (i < len) {
+			final int keyStart = i;
+			while (i < len && s.charAt(i) != '=' && s.charAt(i) > ' ' && s.charAt(i) != '"') {
+				i++;
+			}
+			final int keyEnd = i;
+			if (i >= len || s.charAt(i) != '=' || keyEnd == keyStart) {
+				if (!pairs) {
+					return false;
+				}
+				while (i < len && s.charAt(i) > ' ') {
+					i++; // bare word, e.g. a flag
+				}
+				i = skipSpace(s, i);
+				continue;
+			}
+			pairs = true;
+			i++;
+			final int field = fieldIndex(s, keyStart, keyEnd);
+			if (i < len && s.charAt(i) == '"') {
+				final int valueEnd = skipJsonString(s, i);
+				final int end = valueEnd >= 0 ? valueEnd : len;
+				if (field >= 0 && values[field] == null) {
+					values[field] = unescapeJson(s, i + 1, end);
+					missing--;
+				}
+				i = Math.min(len, end + 1);
+			} else {
+				final int valueStart = i;
+				while (i < len && s.charAt(i) > ' ') {
+					i++;
+				}
+				if (field >= 0 && values[field] == null) {
+					values[field] = s.substring(valueStart, i);
+					missing--;
+				}
+			}
+			if (missing == 0) {
+				return true;
+			}
+			i = skipSpace(s, i);
+		}
+		return pairs;
+	}
+
+	private int fieldIndex(String s, int keyStart, int keyEnd) {
+		final int keyLen = keyEnd - keyStart;
+		for (int f=0; f<fields.length; f++) {
+			if (fields[f].length() == keyLen && s.regionMatches(keyStart, fields[f], 0, keyLen)) {
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipSpace(String s, int i) {
+		final int len = s.length();
+		while (i < len && s.charAt(i) <= ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param i position of the opening quote
+	 * @return position of the closing quote, -1 if there is none
+	 */
+	private static int skipJsonString(String s, int i) {
+		final int len = s.length();
+		for (i++; i<len; i++) {
+			final char c = s.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A number, literal, object or array
+	 * @return the position after it, -1 if it is not terminated
+	 */
+	private static int skipJsonValue(String s, int i) {
+		final int len = s.length();
+		int depth = 0;
+		for (; i<len; i++) {
+			final char c = s.charAt(i);
+			if (c == '"') {
+				i = skipJsonString(s, i);
+				if (i < 0) {
+					return -1;
+				}
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (depth == 0) {
+					return i;
+				}
+				depth--;
+				if (depth == 0) {
+					return i + 1;
+				}
+			} else if (c == ',' && depth == 0) {
+				return i;
+			}
+		}
+		return depth == 0 ? len : -1;
+	}
+
+	private String unescapeJson(String s, int start, int end) {
+		if (s.indexOf('\\', start) < 0 || s.indexOf('\\', start) >= end) {
+			return s.substring(start, end);
+		}
+		valueBld.setLength(0);
+		for (int i=start; i<end; i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < end) {
+				c = s.charAt(++i);
+				switch (c) {
+				case 'n':
+					c = '\n';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case 'b':
+					c = '\b';
+					break;
+				case 'f':
+					c = '\f';
+					break;
+				case 'u':
+					if (i + 4 < end) {
+						try {
+							c = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+							i += 4;
+						} catch (NumberFormatException e) {
+							// keep the u
+						}
+					}
+					break;
+				default:
+					break; // \" \\ \/
+				}
+			}
+			valueBld.append(c);
+		}
+		return valueBld.toString();
+	}
+
+	private static void appendLogfmtValue(StringBuilder sb, String value) {
+		boolean quote = value.isEmpty();
+		for (int i=0; i<value.length() && !quote; i++) {
+			final char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=';
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i=0; i<value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Names (case insensitive, WARNING, ERR, CRITICAL, ...) and the numeric levels of bunyan/pino
+	 * @return index into LEVEL_NAMES or LEVEL_UNKNOWN
+	 */
+	static int level(String s, int start, int end) {
+		if (end > start && Character.isDigit(s.charAt(start))) {
+			try {
+				final int n = Integer.parseInt(s.substring(start, end));
+				return n < 10 ? LEVEL_UNKNOWN : Math.min(LEVEL_NAMES.length - 1, n / 10 - 1);
+			} catch (NumberFormatException e) {
+				return LEVEL_UNKNOWN;
+			}
+		}
+		final String name = s.substring(start, end).trim().toUpperCase(Locale.ROOT);
+		for (int i=0; i<LEVEL_NAMES.length; i++) {
+			if (name.startsWith(LEVEL_NAMES[i])) {
+				return i; // WARNING, INFORMATION, ...
+			}
+		}
+		switch (name) {
+		case "ERR":
+		case "SEVERE":
+			return 4;
+		case "CRIT":
+		case "CRITICAL":
+		case "ALERT":
+		case "EMERG":
+		case "PANIC":
+			return 5;
+		case "FINE":
+		case "FINER":
+			return 1;
+		case "FINEST":
+			return 0;
+		default:
+			return LEVEL_UNKNOWN;
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	public enum Format {
+		/** JSON if a line starts with '{', logfmt otherwise */
+		AUTO,
+		JSON,
+		LOGFMT
+	}
+}
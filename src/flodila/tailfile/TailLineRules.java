@@ -0,0 +1,359 @@
+package flodila.tailfile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Highlighting and alert rules, compiled once: all literal rules into one Aho-Corasick automaton,
+ * all regex rules into one alternation. A line is scanned once by each, however many rules there are.
+ * Regex rules with back references or named groups, which would refer to the wrong group or clash
+ * in the alternation, are matched by a pattern of their own.
+ * <p>
+ * Set on a watch with {@link TailFileWatcher.WatchBuilder#rules(TailLineRules)}, they tag the lines
+ * it reads with {@link TailFileObserver.Match}es. Overlapping literal matches are all found; of
+ * overlapping regex matches only the leftmost is. Alerts only fire for lines read in
+ * {@link TailFileObserver.FileState#CONTINUED} or GAP, i.e. not for the tail shown after opening.
+ */
+public final class TailLineRules {
+	public static final int MAX_MATCHES_PER_LINE = 16;
+	private final List<Rule> rules;
+	private final AhoCorasick literals;
+	private final Pattern combined;
+	/** capturing group of the combined pattern to rule index, -1 for groups within a rule */
+	private final int[] group2rule;
+	/** rules that refer to their own groups, see {@link #standalone(String)} */
+	private final List<Pattern> separate = new ArrayList<>();
+	private final List<Integer> separateRules = new ArrayList<>();
+	private final Set<String> alertTags = new HashSet<>();
+	private final AlertHook alertHook;
+
+	// ----------------------------------------------------
+	// life
+	//
+	public TailLineRules(List<Rule> rules) {
+		this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+		final List<String> literalTexts = new ArrayList<>();
+		final List<Integer> literalRules = new ArrayList<>();
+		final StringBuilder alternation = new StringBuilder();
+		final List<Integer> groups = new ArrayList<>();
+		groups.add(-1); // group 0 is the whole match
+		for (int r=0; r<this.rules.size(); r++) {
+			final Rule rule = this.rules.get(r);
+			if (rule.alert) {
+				alertTags.add(rule.tag);
+			}
+			if (rule.regex && standalone(rule.pattern)) {
+				separate.add(Pattern.compile(rule.pattern));
+				separateRules.add(r);
+			} else if (rule.regex) {
+				final int innerGroups = Pattern.compile(rule.pattern).matcher("").groupCount();
+				alternation.append(alternation.length() > 0 ? "|" : "").append('(').append(rule.pattern).append(')');
+				groups.add(r);
+				for (int g=0; g<innerGroups; g++) {
+					groups.add(-1);
+				}
+			} else {
+				literalTexts.add(rule.pattern);
+				literalRules.add(r);
+			}
+		}
+		this.literals = literalTexts.isEmpty() ? null : new AhoCorasick(literalTexts, literalRules);
+		this.combined = alternation.length() > 0 ? Pattern.compile(alternation.toString()) : null;
+		this.group2rule = groups.stream().mapToInt(Integer::intValue).toArray();
+		this.alertHook = null;
+	}
+
+	private TailLineRules(TailLineRules other, AlertHook alertHook) {
+		this.rules = other.rules;
+		this.literals = other.literals;
+		this.combined = other.combined;
+		this.group2rule = other.group2rule;
+		this.separate.addAll(other.separate);
+		this.separateRules.addAll(other.separateRules);
+		this.alertTags.addAll(other.alertTags);
+		this.alertHook = alertHook;
+	}
+
+	/**
+	 * @return the same rules, calling hook for lines matching an alert rule
+	 */
+	public TailLineRules withAlertHook(AlertHook hook) {
+		return new TailLineRules(this, hook);
+	}
+
+	// ----------------------------------------------------
+	// API
+	//
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return the matches in line, ordered by start
+	 */
+	public List<TailFileObserver.Match> match(String line) {
+		List<TailFileObserver.Match> matches = null;
+		if (literals != null) {
+			matches = literals.match(line, rules, matches);
+		}
+		if (combined != null && (matches == null || matches.size() < MAX_MATCHES_PER_LINE)) {
+			final Matcher m = combined.matcher(line);
+			while (m.find()) {
+				if (m.end() == m.start()) {
+					continue;
+				}
+				for (int g=1; g<group2rule.length; g++) {
+					if (group2rule[g] >= 0 && m.start(g) >= 0) {
+						if (matches == null) {
+							matches = new ArrayList<>(4);
+						}
+						matches.add(new TailFileObserver.Match(rules.get(group2rule[g]).tag, m.start(), m.end()));
+						break;
+					}
+				}
+				if (matches != null && matches.size() >= MAX_MATCHES_PER_LINE) {
+					break;
+				}
+			}
+		}
+		for (int p=0; p<separate.size() && (matches == null || matches.size() < MAX_MATCHES_PER_LINE); p++) {
+			final Matcher m = separate.get(p).matcher(line);
+			while (m.find()) {
+				if (m.end() == m.start()) {
+					continue;
+				}
+				if (matches == null) {
+					matches = new ArrayList<>(4);
+				}
+				matches.add(new TailFileObserver.Match(rules.get(separateRules.get(p).intValue()).tag, m.start(), m.end()));
+				if (matches.size() >= MAX_MATCHES_PER_LINE) {
+					break;
+				}
+			}
+		}
+		if (matches == null) {
+			return Collections.emptyList();
+		}
+		matches.sort((m1, m2) -> m1.start != m2.start ? Integer.compare(m1.start, m2.start) : Integer.compare(m2.end, m1.end));
+		return Collections.unmodifiableList(matches);
+	}
+
+	/**
+	 * Replaces the lines that match with tagged ones, and raises alerts
+	 */
+	void apply(TailFileObserver.FileState state, List<TailFileObserver.Line> lines) {
+		for (ListIterator<TailFileObserver.Line> it = lines.listIterator(); it.hasNext();) {
+			it.set(tag(state, it.next()));
+		}
+	}
+
+	/**
+	 * @return line itself if nothing matches, otherwise a tagged copy, after raising its alerts
+	 */
+	TailFileObserver.Line tag(TailFileObserver.FileState state, TailFileObserver.Line line) {
+		final List<TailFileObserver.Match> matches = match(line.content);
+		if (matches.isEmpty()) {
+			return line;
+		}
+		final TailFileObserver.Line tagged = new TailFileObserver.Line(line.lineno, line.content, line.source, matches, line.offset, line.omitted);
+		if (alertHook != null && (state == TailFileObserver.FileState.CONTINUED || state == TailFileObserver.FileState.GAP)) {
+			alert(tagged);
+		}
+		return tagged;
+	}
+
+	// ----------------------------------------------------
+	// extracts
+	//
+	/**
+	 * @return whether regex has a back reference or a named group, which the alternation would break
+	 */
+	static boolean standalone(String regex) {
+		for (int i=0; i<regex.length(); i++) {
+			final char c = regex.charAt(i);
+			if (c == '\\' && i + 1 < regex.length()) {
+				final char escaped = regex.charAt(++i);
+				if (escaped == 'Q') {
+					final int end = regex.indexOf("\\E", i);
+					i = end < 0 ? regex.length() : end + 1; // quoted up to \E
+				} else if (escaped == 'k' || escaped >= '1' && escaped <= '9') {
+					return true;
+				}
+			} else if (c == '(' && regex.startsWith("?<", i + 1) && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+				return true; // (?<name>, not the look behinds (?<= and (?<!
+			}
+		}
+		return false;
+	}
+
+	private void alert(TailFileObserver.Line line) {
+		String alerted = null; // once per tag and line
+		for (TailFileObserver.Match match : line.matches) {
+			if (match.tag.equals(alerted) || !alertTags.contains(match.tag)) {
+				continue;
+			}
+			alerted = match.tag;
+			try {
+				alertHook.alert(match.tag, line);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// ----------------------------------------------------
+	// type
+	//
+	public static final class Rule {
+		public final String tag;
+		public final String pattern;
+		public final boolean regex;
+		public final boolean alert;
+		private Rule(String tag, String pattern, boolean regex, boolean alert) {
+			if (tag == null || pattern == null || pattern.isEmpty()) {
+				throw new IllegalArgumentException("Rule needs a tag and a non-empty pattern");
+			}
+			this.tag = tag;
+			this.pattern = pattern;
+			this.regex = regex;
+			this.alert = alert;
+		}
+		public static Rule literal(String tag, String text, boolean alert) {
+			return new Rule(tag, text, false, alert);
+		}
+		public static Rule regex(String tag, String regex, boolean alert) {
+			Pattern.compile(regex); // fail early
+			return new Rule(tag, regex, true, alert);
+		}
+	}
+
+	/**
+	 * Called on the watcher thread: must not block
+	 */
+	public interface AlertHook {
+		void alert(String tag, TailFileObserver.Line line);
+	}
+
+	/**
+	 * Goto function as sorted transition arrays per state, with a dense table for ASCII at the root;
+	 * outputs already include those of the fail chain
+	 */
+	private static final class AhoCorasick {
+		private final char[][] keys;
+		private final int[][] next;
+		private final int[] rootNext = new int[128];
+		private final int[] fail;
+		private final int[][] outputs;
+		private final int[] literalLength;
+		private final int[] literalRule;
+		public AhoCorasick(List<String> literals, List<Integer> literalRules) {
+			final List<Map<Character, Integer>> gotoFn = new ArrayList<>();
+			final List<List<Integer>> out = new ArrayList<>();
+			gotoFn.add(new HashMap<>());
+			out.add(new ArrayList<>());
+			literalLength = new int[literals.size()];
+			literalRule = new int[literals.size()];
+			for (int l=0; l<literals.size(); l++) {
+				final String literal = literals.get(l);
+				literalLength[l] = literal.length();
+				literalRule[l] = literalRules.get(l).intValue();
+				int state = 0;
+				for (int i=0; i<literal.length(); i++) {
+					final Character c = Character.valueOf(literal.charAt(i));
+					Integer n = gotoFn.get(state).get(c);
+					if (n == null) {
+						n = Integer.valueOf(gotoFn.size());
+						gotoFn.add(new HashMap<>());
+						out.add(new ArrayList<>());
+						gotoFn.get(state).put(c, n);
+					}
+					state = n.intValue();
+				}
+				out.get(state).add(l);
+			}
+			final int states = gotoFn.size();
+			keys = new char[states][];
+			next = new int[states][];
+			for (int s=0; s<states; s++) {
+				final Character[] sorted = gotoFn.get(s).keySet().toArray(new Character[0]);
+				Arrays.sort(sorted);
+				keys[s] = new char[sorted.length];
+				next[s] = new int[sorted.length];
+				for (int k=0; k<sorted.length; k++) {
+					keys[s][k] = sorted[k].charValue();
+					next[s][k] = gotoFn.get(s).get(sorted[k]).intValue();
+				}
+			}
+			Arrays.fill(rootNext, -1);
+			for (int k=0; k<keys[0].length; k++) {
+				if (keys[0][k] < 128) {
+					rootNext[keys[0][k]] = next[0][k];
+				}
+			}
+			// fail links breadth first, so that the fail state of a state is done before it
+			fail = new int[states];
+			final ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for (int n : next[0]) {
+				queue.add(n);
+			}
+			while (!queue.isEmpty()) {
+				final int s = queue.poll().intValue();
+				for (int k=0; k<keys[s].length; k++) {
+					final char c = keys[s][k];
+					final int n = next[s][k];
+					int f = fail[s];
+					while (f != 0 && step(f, c) < 0) {
+						f = fail[f];
+					}
+					final int fn = step(f, c);
+					fail[n] = fn >= 0 && fn != n ? fn : 0;
+					out.get(n).addAll(out.get(fail[n]));
+					queue.add(n);
+				}
+			}
+			outputs = new int[states][];
+			for (int s=0; s<states; s++) {
+				outputs[s] = out.get(s).stream().mapToInt(Integer::intValue).toArray();
+			}
+		}
+		private int step(int state, char c) {
+			if (state == 0 && c < 128) {
+				return rootNext[c];
+			}
+			final int k = Arrays.binarySearch(keys[state], c);
+			return k >= 0 ? next[state][k] : -1;
+		}
+		public List<TailFileObserver.Match> match(String s, List<Rule> rules, List<TailFileObserver.Match> matches) {
+			int state = 0;
+			final int len = s.length();
+			for (int i=0; i<len; i++) {
+				final char c = s.charAt(i);
+				int n;
+				while ((n = step(state, c)) < 0 && state != 0) {
+					state = fail[state];
+				}
+				state = n >= 0 ? n : 0;
+				for (int o : outputs[state]) {
+					if (matches == null) {
+						matches = new ArrayList<>(4);
+					}
+					matches.add(new TailFileObserver.Match(rules.get(literalRule[o]).tag, i + 1 - literalLength[o], i + 1));
+					if (matches.size() >= MAX_MATCHES_PER_LINE) {
+						return matches;
+					}
+				}
+			}
+			return matches;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+// the viewer of a tail page; served once per version, the page passes data-max-lines and data-sock on the body
+(function(){
+  var LINEBUFF_POWER = parseInt(document.body.getAttribute('data-max-lines'), 10);
+  var TAIL_DISPLAY_POWER = 128;
+  var MODE_TAIL_F = 'tail -f';
+  var MODE_TAIL_N = 'tail -n '+LINEBUFF_POWER;
+  var mode = MODE_TAIL_F;
+  var linebuff = [];
+  var notContinuedFlag;
+  var initialEl = document.getElementById('initial');
+  if (initialEl) {
+    receive(JSON.parse(initialEl.textContent)); // the tail as of the page, before the socket is even open
+  }
+  var socke = new WebSocket('ws://'+window.location.hostname+':'+window.location.port+document.body.getAttribute('data-sock')+window.location.search);
+  socke.onerror = function(error) {
+    console.error('Web Socket error', error);
+    var messageEl = document.getElementById('message');
+    empty(messageEl);
+    messageEl.appendChild(document.createTextNode('Web Socket error: '+error));
+  };
+  socke.onclose = function(event) {
+    if (event.reason) { // e.g. the tail was removed
+      var messageEl = document.getElementById('message');
+      empty(messageEl);
+      messageEl.appendChild(document.createTextNode('Web Socket closed: '+event.reason));
+    }
+  };
+  socke.onmessage = function(event) {
+    if (event.data) {
+      receive(JSON.parse(event.data));
+    }
+  };
+  function receive(msg) {
+    if (msg.state !== 'CONTINUED' && msg.state !== 'GAP') {
+      cleanLinebuff();
+      notContinuedFlag = true;
+    }
+    var messageEl = document.getElementById('message');
+    empty(messageEl);
+    messageEl.appendChild(document.createTextNode(msg.message));
+    if (msg.state === 'GAP' && msg.lines && msg.lines.length) {
+      linebuffAdd([{ n: msg.lines[0].n - 0.5, t: '[' + msg.message + ']' }]);
+    }
+    linebuffAdd(msg.lines);
+    if (mode === MODE_TAIL_F) {
+      displayLinebuff(TAIL_DISPLAY_POWER);
+    }
+  }
+  function cleanLinebuff() {
+    linebuff = [];
+  }
+  function linebuffAdd(lines) {
+    if (!lines) return;
+    linebuff = linebuff.concat(lines);
+    linebuff.sort(function(l1, l2) {
+      if (!l1 && !l2) return 0;
+      if (!l1) return -1;
+      if (!l2) return 1;
+      if (!l1.n && !l2.n) return 0;
+      if (!l1.n) return -1;
+      if (!l2.n) return 1;
+      return (l1.n - l2.n) || ((l1.o || 0) - (l2.o || 0));
+    });
+    while (linebuff.length > LINEBUFF_POWER) linebuff.shift();
+  }
+  function displayLinebuff(n) {
+    var currCmp, toBeRemovedEl;
+    var bufflen = linebuff.length;
+    var displayPower = (!n || n > bufflen) ? bufflen : n;
+    var start = bufflen - displayPower;
+    var linesEl = document.getElementById('lines');
+    if (notContinuedFlag) {
+      empty(linesEl);
+      notContinuedFlag = false;
+    }
+    var currLineEl = linesEl.firstChild;
+    for (var i=start; i<bufflen; i++) {
+      var buffLine = linebuff[i];
+      while (typeof (currCmp = elIdCmp(currLineEl, buffLine)) !== 'undefined' && currCmp < 0) {
+        toBeRemovedEl = currLineEl;
+        currLineEl = currLineEl.nextSibling;
+        linesEl.removeChild(toBeRemovedEl);
+      }
+      if (!currLineEl) {
+        linesEl.appendChild(newLineEl(buffLine));
+      } else if (currCmp > 0) {
+        linesEl.insertBefore(newLineEl(buffLine), currLineEl);
+      } else {
+        currLineEl = currLineEl.nextSibling;
+      }
+    }
+    while (currLineEl) {
+      toBeRemovedEl = currLineEl;
+      currLineEl = currLineEl.nextSibling;
+      linesEl.removeChild(toBeRemovedEl);
+    }
+    linesEl.scrollTo(0, linesEl.scrollHeight);
+    function elIdCmp(el, buffLine) {
+      if (!el) return undefined;
+      var id = el.getAttribute('id').substring(3).split('_');
+      return (parseFloat(id[0]) - buffLine.n) || ((id.length > 1 ? parseFloat(id[1]) : 0) - (buffLine.o || 0));
+    }
+    function newLineEl(buffLine) {
+      var lineDivEl = document.createElement('div');
+      lineDivEl.setAttribute('id', 'ld_'+buffLine.n+(buffLine.o ? '_'+buffLine.o : ''));
+      if (!buffLine.s && buffLine.n % 1 === 0) {
+        lineDivEl.setAttribute('title', 'line ' + buffLine.n); // as ?download&from= counts
+      }
+      if (buffLine.o) {
+        lineDivEl.appendChild(cutEl('[+' + buffLine.o + '] '));
+      }
+      if (buffLine.s) {
+        var srcEl = document.createElement('span');
+        srcEl.setAttribute('class', 'src');
+        srcEl.appendChild(document.createTextNode('[' + buffLine.s + '] '));
+        lineDivEl.appendChild(srcEl);
+      }
+      if (buffLine.t && buffLine.h) {
+        var pos = 0;
+        for (var h=0; h<buffLine.h.length; h++) {
+          var hl = buffLine.h[h];
+          if (hl[0] < pos) continue;
+          if (hl[0] > pos) lineDivEl.appendChild(document.createTextNode(buffLine.t.substring(pos, hl[0])));
+          var hlEl = document.createElement('span');
+          hlEl.setAttribute('class', 'hl');
+          hlEl.setAttribute('title', hl[2]);
+          hlEl.appendChild(document.createTextNode(buffLine.t.substring(hl[0], hl[1])));
+          lineDivEl.appendChild(hlEl);
+          pos = hl[1];
+        }
+        if (pos < buffLine.t.length) lineDivEl.appendChild(document.createTextNode(buffLine.t.substring(pos)));
+      } else if (buffLine.t) {
+        lineDivEl.appendChild(document.createTextNode(buffLine.t));
+      } else {
+        lineDivEl.appendChild(document.createElement('br'));
+      }
+      if (buffLine.x) {
+        lineDivEl.appendChild(cutEl(' [' + buffLine.x + ' more characters cut off]'));
+      }
+      return lineDivEl;
+    }
+    function cutEl(text) {
+      var el = document.createElement('span');
+      el.setAttribute('class', 'cut');
+      el.appendChild(document.createTextNode(text));
+      return el;
+    }
+  }
+  function empty(el) {
+    var i;
+    var children = el.childNodes;
+    var toBeRemoved = [];
+    for (i=0; i<children.length; i++) {
+      toBeRemoved.push(children.item(i));
+    }
+    for (i=0; i<toBeRemoved.length; i++) {
+      el.removeChild(toBeRemoved[i]);
+    }
+  }
+  document.onreadystatechange = function() {
+    if (document.readyState === 'complete') {
+      document.getElementById('togglemode').addEventListener('click', function() {
+        if (mode === MODE_TAIL_F) {
+          mode = MODE_TAIL_N;
+          displayLinebuff(LINEBUFF_POWER);
+        } else {;
+          mode = MODE_TAIL_F;
+          displayLinebuff(TAIL_DISPLAY_POWER);
+        }
+        var modeEl = document.getElementById('mode');
+        empty(modeEl);
+        modeEl.appendChild(document.createTextNode(mode));
+      });
+    }
+  };
+})();